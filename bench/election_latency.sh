@@ -0,0 +1,116 @@
+#!/bin/bash
+# Measures how long complete elections on localhost take, phase by phase, from the events the Coordinator and the
+# Participants send to the Logger. For each participant count, option count and timeout it runs a number of elections,
+# each with its own UDPLoggerServer, and reports the p50, p90, p99 and max of every phase in milliseconds:
+#
+#   join     the first JOIN sent until the Coordinator has received every JOIN
+#   details  until every Participant has received DETAILS and VOTE_OPTIONS
+#   connect  until every Participant has connected to its peers and begun round 1
+#   round r  until every Participant that ran round r has ended it, only elections that ran it are counted
+#   outcome  until the Coordinator has received every OUTCOME
+#   total    the first JOIN sent until the Coordinator has received every OUTCOME
+#
+# Each phase ends at the latest event of its kind across the processes, so the phases of an election add up to its
+# total. The timestamps are taken as each event is logged, by the process logging it.
+#
+# usage: bench/election_latency.sh [participant counts...]      (default: 5 10 20)
+# environment: JAVA (default java), ELECTIONS (per configuration, default 10), OPTIONS (option counts, default 3),
+#              TIMEOUTS (ms, default 1000), LIMIT (seconds an election may take before it is killed, default 300),
+#              BASE_PORT (default 20000), PROPS (extra system properties for every process, e.g. "-Dwire.protocol=binary")
+
+SIZES=${@:-5 10 20}
+JAVA=${JAVA:-java}
+JAVAC=${JAVAC:-javac}
+ELECTIONS=${ELECTIONS:-10}
+OPTIONS=${OPTIONS:-3}
+TIMEOUTS=${TIMEOUTS:-1000}
+LIMIT=${LIMIT:-300}
+BASE_PORT=${BASE_PORT:-20000}
+LOGGER_PORT=$((BASE_PORT - 1))
+SRC=$(cd "$(dirname "$0")/../src" && pwd)
+
+WORK=$(mktemp -d)
+trap 'pkill -P $$ 2>/dev/null; rm -rf "$WORK"' EXIT
+$JAVAC -Xlint:-deprecation -d "$WORK/classes" "$SRC"/*.java || exit 1
+
+# prints "order phase ms" for every phase of an election of $1 participants logged in the segment files that follow, or
+# "incomplete" if the Coordinator did not receive an OUTCOME from every Participant
+phases()
+{
+	local parts=$1
+	shift
+	cat "$@" | tr -d '\0' | awk -v parts=$parts '
+		function latest(t, name) { if (!(name in last) || t > last[name]) last[name] = t }
+		$4 == "JOIN" && (first == "" || $2 < first) { first = $2 }
+		$3 == "[C]" && $4 == "JOIN" && $5 == "received" { latest($2, "join") }
+		$3 ~ /^\[P/ && $4 == "received" && $5 == "vote" { latest($2, "details") }
+		$3 ~ /^\[P/ && $4 == "begin" && $6 == 1 { latest($2, "connect") }
+		$3 ~ /^\[P/ && $4 == "end" && $5 == "round" { latest($2, "round " $6); if ($6 > rounds) rounds = $6 }
+		$3 == "[C]" && $4 == "outcome" { latest($2, "outcome"); outcomes++ }
+		END {
+			if (outcomes < parts || first == "") { print "incomplete"; exit }
+			split("join details connect", names, " ")
+			end = first
+			for (i = 1; i <= 3; i++) {
+				t = (names[i] in last && last[names[i]] > end) ? last[names[i]] : end
+				print i, names[i], t - end
+				end = t
+			}
+			for (r = 1; r <= rounds; r++) {
+				if (!(("round " r) in last))
+					continue
+				t = last["round " r] > end ? last["round " r] : end
+				print 10 + r, "round_" r, t - end
+				end = t
+			}
+			print 1000, "outcome", last["outcome"] - end
+			print 1001, "total", last["outcome"] - first
+		}'
+}
+
+printf "%6s %7s %7s  %-9s %6s %8s %8s %8s %8s\n" N options timeout phase count p50 p90 p99 max
+for n in $SIZES; do
+	for o in $OPTIONS; do
+		for t in $TIMEOUTS; do
+			options=$(seq -f "O%g" 1 $o | tr '\n' ' ')
+			results="$WORK/results-$n-$o-$t"
+			incomplete=0
+			for e in $(seq 1 $ELECTIONS); do
+				run="$WORK/$n-$o-$t-$e"
+				mkdir -p "$run" && cd "$run"
+				$JAVA -cp "$WORK/classes" UDPLoggerServer $LOGGER_PORT > logger.out 2>&1 &
+				logger=$!
+				sleep 0.5
+				timeout $LIMIT $JAVA $PROPS -cp "$WORK/classes" Coordinator $BASE_PORT $LOGGER_PORT $n $t $options > coordinator.out 2>&1 &
+				pids=($!)
+				sleep 0.5
+				for i in $(seq 1 $n); do
+					timeout $LIMIT $JAVA $PROPS -cp "$WORK/classes" Participant $BASE_PORT $LOGGER_PORT $((BASE_PORT + i)) $t > participant_$i.out 2>&1 &
+					pids+=($!)
+				done
+				wait "${pids[@]}"
+				sleep 0.5 # the last datagrams are sent as the processes exit
+				kill $logger; wait $logger 2>/dev/null
+
+				phases $n logger_server_*_*.log > phases
+				if grep -q incomplete phases; then
+					incomplete=$((incomplete + 1))
+				else
+					cat phases >> "$results"
+				fi
+			done
+
+			[ -s "$results" ] && sort -k1,1n -k3,3n "$results" | awk -v n=$n -v o=$o -v t=$t '
+				function report() {
+					printf "%6d %7d %7d  %-9s %6d %8d %8d %8d %8d\n", n, o, t, phase, count, \
+					       ms[int((count - 1) * 0.5) + 1], ms[int((count - 1) * 0.9) + 1], ms[int((count - 1) * 0.99) + 1], ms[count]
+				}
+				$2 != phase { if (count) report(); phase = $2; count = 0 }
+				{ ms[++count] = $3 }
+				END { if (count) report() }'
+			if ((incomplete > 0)); then
+				printf "%6d %7d %7d  %d of %d elections did not receive every OUTCOME\n" $n $o $t $incomplete $ELECTIONS
+			fi
+		done
+	done
+done
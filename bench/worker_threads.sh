@@ -0,0 +1,66 @@
+#!/bin/bash
+# Compares platform and virtual worker threads (-Dworker.threads) by running complete elections on localhost.
+# For each mode and participant count it reports the peak number of OS threads and the peak resident memory
+# summed over the Coordinator and all Participants, and the time from starting the Coordinator until it has
+# received every OUTCOME.
+#
+# usage: bench/worker_threads.sh [participant counts...]      (default: 10 100 1000)
+# environment: JAVA (default java, needs 21+ for virtual threads), TIMEOUT (ms, default 1000), BASE_PORT (default 20000)
+
+SIZES=${@:-10 100 1000}
+JAVA=${JAVA:-java}
+JAVAC=${JAVAC:-javac}
+TIMEOUT=${TIMEOUT:-1000}
+BASE_PORT=${BASE_PORT:-20000}
+LOGGER_PORT=$((BASE_PORT - 1))
+SRC=$(cd "$(dirname "$0")/../src" && pwd)
+
+WORK=$(mktemp -d)
+trap 'pkill -P $$ 2>/dev/null; rm -rf "$WORK"' EXIT
+$JAVAC -Xlint:-deprecation -d "$WORK/classes" "$SRC"/*.java || exit 1
+
+# prints "threads rssKb" summed over the given pids
+sample()
+{
+	local threads=0 rss=0 t r
+	for pid in "$@"; do
+		t=$(awk '/^Threads:/ {print $2}' /proc/$pid/status 2>/dev/null)
+		r=$(awk '/^VmRSS:/ {print $2}' /proc/$pid/status 2>/dev/null)
+		threads=$((threads + ${t:-0}))
+		rss=$((rss + ${r:-0}))
+	done
+	echo "$threads $rss"
+}
+
+printf "%-9s %6s %12s %14s %12s\n" mode N peakThreads peakRssMB electionMs
+for mode in platform virtual; do
+	for n in $SIZES; do
+		run="$WORK/$mode-$n"
+		mkdir -p "$run" && cd "$run"
+		start=$(date +%s%N)
+		$JAVA -Dworker.threads=$mode -cp "$WORK/classes" Coordinator $BASE_PORT $LOGGER_PORT $n $TIMEOUT A B C > coordinator.out 2>&1 &
+		pids=($!)
+		for i in $(seq 1 $n); do
+			$JAVA -Dworker.threads=$mode -cp "$WORK/classes" Participant $BASE_PORT $LOGGER_PORT $((BASE_PORT + i)) $TIMEOUT > participant_$i.out 2>&1 &
+			pids+=($!)
+		done
+
+		peakThreads=0; peakRss=0; elapsed=
+		while true; do
+			read threads rss <<< "$(sample "${pids[@]}")"
+			((threads > peakThreads)) && peakThreads=$threads
+			((rss > peakRss)) && peakRss=$rss
+			if [ "$(cat coordinator_*.log 2>/dev/null | grep -c '\] outcome')" -ge "$n" ]; then
+				elapsed=$(( ($(date +%s%N) - start) / 1000000 ))
+				break
+			fi
+			if (( ($(date +%s%N) - start) / 1000000 > 600000 )); then
+				elapsed=timeout
+				break
+			fi
+			sleep 0.1
+		done
+		kill "${pids[@]}" 2>/dev/null; wait 2>/dev/null
+		printf "%-9s %6d %12d %14d %12s\n" $mode $n $peakThreads $((peakRss / 1024)) $elapsed
+	done
+done
@@ -0,0 +1,64 @@
+#!/bin/bash
+# Compares writing every message on its own (-Dwire.flush=message, as before write coalescing) with staging each
+# writer's queued messages and flushing them together (the default) by running complete elections on localhost.
+# For each mode and participant count it reports the socket writes made by the Coordinator and all Participants,
+# counted with JFR jdk.SocketWrite events, the TCP segments sent, from the OutSegs counter in /proc/net/snmp (so
+# nothing else should be using the network), and the wall time until every Participant has exited.
+#
+# usage: bench/write_coalescing.sh [participant counts...]      (default: 5 10 20)
+# environment: JAVA (default java), TIMEOUT (ms, default 1000), BASE_PORT (default 20000),
+#              PROPS (extra system properties for every process, e.g. "-Dcoordinator.ballots=50 -Dcoordinator.concurrent=5")
+
+SIZES=${@:-5 10 20}
+JAVA=${JAVA:-java}
+JAVAC=${JAVAC:-javac}
+JFR=${JFR:-jfr}
+TIMEOUT=${TIMEOUT:-1000}
+BASE_PORT=${BASE_PORT:-20000}
+LOGGER_PORT=$((BASE_PORT - 1))
+SRC=$(cd "$(dirname "$0")/../src" && pwd)
+
+WORK=$(mktemp -d)
+trap 'pkill -P $$ 2>/dev/null; rm -rf "$WORK"' EXIT
+$JAVAC -Xlint:-deprecation -d "$WORK/classes" "$SRC"/*.java || exit 1
+
+outSegs()
+{
+	awk '/^Tcp:/ && $0 ~ /[0-9]/ {print $12}' /proc/net/snmp
+}
+
+# prints the number of socket writes in a recording
+socketWrites()
+{
+	$JFR summary "$1" 2>/dev/null | awk '$1 == "jdk.SocketWrite" {print $2}'
+}
+
+printf "%-8s %6s %14s %12s %12s\n" flush N socketWrites tcpSegments electionMs
+for mode in message round; do
+	for n in $SIZES; do
+		run="$WORK/$mode-$n"
+		mkdir -p "$run" && cd "$run"
+		record="-XX:StartFlightRecording:jdk.SocketWrite#enabled=true,jdk.SocketWrite#threshold=0ms,filename="
+		segments=$(outSegs)
+		start=$(date +%s%N)
+		$JAVA -Dwire.flush=$mode $PROPS ${record}coordinator.jfr -cp "$WORK/classes" Coordinator $BASE_PORT $LOGGER_PORT $n $TIMEOUT A B C > coordinator.out 2>&1 &
+		coordinator=$!
+		sleep 0.5
+		pids=()
+		for i in $(seq 1 $n); do
+			$JAVA -Dwire.flush=$mode $PROPS ${record}participant_$i.jfr -cp "$WORK/classes" Participant $BASE_PORT $LOGGER_PORT $((BASE_PORT + i)) $TIMEOUT > participant_$i.out 2>&1 &
+			pids+=($!)
+		done
+		wait "${pids[@]}"
+		elapsed=$(( ($(date +%s%N) - start) / 1000000 ))
+		wait $coordinator
+		segments=$(( $(outSegs) - segments ))
+
+		writes=0
+		for recording in *.jfr; do
+			count=$(socketWrites "$recording")
+			writes=$((writes + ${count:-0}))
+		done
+		printf "%-8s %6d %14d %12d %12d\n" $mode $n $writes $segments $elapsed
+	done
+done
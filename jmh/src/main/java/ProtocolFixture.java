@@ -0,0 +1,249 @@
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+import bench.HotPaths;
+
+/**
+ * The hot paths of the protocol set up for the benchmarks in the bench package, on the real Coordinator and Participant
+ * connected by an InMemoryNetwork. Their private members are looked up once here and called through method handles.
+ *
+ * Participant 10001 receives from every other participant and the coordinator sends it DETAILS. The other end of every
+ * connection is closed straight away so whatever is written to it is discarded. Console output goes nowhere, the
+ * messages printed are still built as they would be for a console.
+ */
+public class ProtocolFixture implements HotPaths
+{
+	private static final int COORDINATOR_PORT = 10000;
+	private static final int PARTICIPANT_PORT = 10001; // the participant set up, the others follow it
+	private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+	private final int[] ports; // of every participant, this one first
+	private final int[] votes; // the option each participant voted for, a different one each in turn
+	private final List<Integer> peers = new ArrayList<>();
+	private final List<String> options = new ArrayList<>();
+	private final int[] deltaPorts; // filled by each merge of a tally
+	private final int[] deltaOptions;
+	private final ParticipantLogger participantLogger;
+	private final CoordinatorLogger coordinatorLogger;
+
+	private final Object listener; // a ParticipantListener reading from participant 10002
+	private final MethodHandle receiveVotes; // ParticipantListener.receiveVotes for the text or binary message
+	private final Object message; // a VOTE line or frame carrying the vote of every other participant
+	private final int[] received; // the rounds the listener has received, reset before every message
+	private final Object ballot; // the election, every vote known
+	private final MethodHandle decideOutcome;
+	private final Object connection; // the coordinator's connection to the participant
+	private final MethodHandle sendDetails;
+	private final MethodHandle flush;
+
+	public ProtocolFixture(int participants, int optionCount, boolean binary, Consumer<CharSequence> sink) throws Throwable
+	{
+		System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+		ports = new int[participants];
+		votes = new int[participants];
+		deltaPorts = new int[participants];
+		deltaOptions = new int[participants];
+		for(int i = 0; i < participants; i++)
+		{
+			ports[i] = PARTICIPANT_PORT + i;
+			votes[i] = i % optionCount;
+			if(i > 0)
+			{
+				peers.add(ports[i]);
+			}
+		}
+		for(int i = 0; i < optionCount; i++)
+		{
+			options.add("option" + i);
+		}
+		participantLogger = new ParticipantLogger(PARTICIPANT_PORT)
+		{
+			@Override
+			protected void logMessage(CharSequence message)
+			{
+				sink.accept(message);
+			}
+		};
+		coordinatorLogger = new CoordinatorLogger()
+		{
+			@Override
+			protected void logMessage(CharSequence message)
+			{
+				sink.accept(message);
+			}
+		};
+
+		InMemoryNetwork network = new InMemoryNetwork();
+		List<String> coordinatorArgs = new ArrayList<>(List.of(Integer.toString(COORDINATOR_PORT), "0", Integer.toString(participants), "1000"));
+		coordinatorArgs.addAll(options);
+		Coordinator coordinator = new Coordinator(coordinatorArgs.toArray(new String[0]), network.transport(COORDINATOR_PORT), coordinatorLogger);
+		Participant participant = new Participant(new String[]{Integer.toString(COORDINATOR_PORT), "0", Integer.toString(PARTICIPANT_PORT), "1000"},
+		                                          network.transport(PARTICIPANT_PORT), participantLogger);
+		List<Integer> all = new ArrayList<>(peers);
+		all.add(0, PARTICIPANT_PORT);
+		set(Coordinator.class, "participants", coordinator, all);
+		set(Participant.class, "participants", participant, new ArrayList<>(peers));
+
+		// the election, with every vote known
+		Class<?> ballotClass = Class.forName("Participant$Ballot");
+		ballot = constructor(ballotClass, Participant.class, int.class, List.class).newInstance(participant, 0, options);
+		Class<?> barrierClass = Class.forName("Participant$RoundBarrier");
+		set(ballotClass, "barrier", ballot, constructor(barrierClass, int.class, int.class).newInstance(0, 1)); // tracks no rounds
+		set(Participant.class, "election", participant, ballot);
+		VoteTable table = (VoteTable) get(ballotClass, "votes", ballot);
+		for(int i = 0; i < participants; i++)
+		{
+			table.record(table.indexOf(ports[i]), votes[i]);
+		}
+		table.merge(deltaPorts, deltaOptions);
+		received = (int[]) get(ballotClass, "received", ballot);
+		decideOutcome = lookup(ballotClass).findVirtual(ballotClass, "decideOutcome", MethodType.methodType(void.class));
+
+		// a listener for participant 10002, and the coordinator's connection to 10001
+		ServerSocket server = network.transport(PARTICIPANT_PORT).listen(PARTICIPANT_PORT);
+		Socket fromPeer = network.transport(ports[1]).connect(PARTICIPANT_PORT);
+		fromPeer.close();
+		Class<?> listenerClass = Class.forName("Participant$ParticipantListener");
+		listener = constructor(listenerClass, Participant.class, Socket.class, int.class).newInstance(participant, server.accept(), 0);
+		int[] optionIndices = new int[participants - 1];
+		System.arraycopy(votes, 1, optionIndices, 0, participants - 1);
+		int[] peerPorts = new int[participants - 1];
+		System.arraycopy(ports, 1, peerPorts, 0, participants - 1);
+		if(binary)
+		{
+			ByteBuffer frame = WireProtocol.encodeVotes(WireProtocol.VOTE, new int[0], peerPorts, optionIndices, participants - 1);
+			frame.position(frame.position() + 4); // as readFrame leaves it, at the message type
+			message = frame;
+			receiveVotes = lookup(listenerClass).findVirtual(listenerClass, "receiveVotes", MethodType.methodType(void.class, ByteBuffer.class));
+		}
+		else
+		{
+			StringBuilder line = new StringBuilder("VOTE");
+			for(int i = 0; i < peerPorts.length; i++)
+			{
+				line.append(" ").append(peerPorts[i]).append(" ").append(options.get(optionIndices[i]));
+			}
+			message = line.toString();
+			receiveVotes = lookup(listenerClass).findVirtual(listenerClass, "receiveVotes", MethodType.methodType(void.class, String.class));
+		}
+
+		Socket toParticipant = network.transport(COORDINATOR_PORT).connect(PARTICIPANT_PORT);
+		server.accept().close();
+		Class<?> handlerClass = Class.forName("Coordinator$ParticipantHandler");
+		Class<?> connectionClass = Class.forName("Coordinator$ParticipantConnection");
+		connection = constructor(handlerClass, Coordinator.class, Socket.class).newInstance(coordinator, toParticipant);
+		set(handlerClass, "thisPort", connection, PARTICIPANT_PORT);
+		set(handlerClass, "binary", connection, binary);
+		sendDetails = lookup(Coordinator.class).findVirtual(Coordinator.class, "sendDetails", MethodType.methodType(void.class, connectionClass))
+		                                       .bindTo(coordinator);
+		flush = lookup(connectionClass).findVirtual(connectionClass, "flush", MethodType.methodType(void.class));
+	}
+
+	private static MethodHandles.Lookup lookup(Class<?> target) throws IllegalAccessException
+	{
+		return MethodHandles.privateLookupIn(target, LOOKUP);
+	}
+
+	private static Constructor<?> constructor(Class<?> target, Class<?>... parameters) throws NoSuchMethodException
+	{
+		Constructor<?> constructor = target.getDeclaredConstructor(parameters);
+		constructor.setAccessible(true);
+		return constructor;
+	}
+
+	private static Object get(Class<?> target, String name, Object instance) throws ReflectiveOperationException
+	{
+		Field field = target.getDeclaredField(name);
+		field.setAccessible(true);
+		return field.get(instance);
+	}
+
+	private static void set(Class<?> target, String name, Object instance, Object value) throws ReflectiveOperationException
+	{
+		Field field = target.getDeclaredField(name);
+		field.setAccessible(true);
+		field.set(instance, value);
+	}
+
+	@Override
+	public void receiveVotes() throws Throwable
+	{
+		received[0] = 1; // every message is read as the second round's, which carries the votes learnt in the first
+		if(message instanceof ByteBuffer)
+		{
+			ByteBuffer frame = (ByteBuffer) message;
+			frame.position(4);
+			receiveVotes.invoke(listener, frame);
+		}
+		else
+		{
+			receiveVotes.invoke(listener, (String) message);
+		}
+	}
+
+	@Override
+	public void sendDetails() throws Throwable
+	{
+		sendDetails.invoke(connection);
+		flush.invoke(connection);
+	}
+
+	@Override
+	public void decideOutcome() throws Throwable
+	{
+		decideOutcome.invoke(ballot);
+	}
+
+	@Override
+	public int tallyVotes()
+	{
+		VoteTable table = new VoteTable(PARTICIPANT_PORT, peers, options);
+		for(int i = 0; i < ports.length; i++)
+		{
+			table.record(i, votes[i]); // the ports are already in order
+		}
+		table.merge(deltaPorts, deltaOptions);
+		return table.leader();
+	}
+
+	@Override
+	public void logVotesReceived()
+	{
+		participantLogger.votesReceived(ports[1], ports, votes, ports.length, options);
+	}
+
+	@Override
+	public void logVotesSent()
+	{
+		participantLogger.votesSent(ports[1], ports, votes, ports.length, options);
+	}
+
+	@Override
+	public void logOutcomeDecided()
+	{
+		participantLogger.outcomeDecided(options.get(0), peers);
+	}
+
+	@Override
+	public void logDetailsSent()
+	{
+		coordinatorLogger.detailsSent(PARTICIPANT_PORT, peers);
+	}
+
+	@Override
+	public void logOutcomeReceived()
+	{
+		coordinatorLogger.outcomeReceived(PARTICIPANT_PORT, options.get(0));
+	}
+}
@@ -0,0 +1,56 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Deciding the outcome of an election. The votes are tallied as each round's are merged, so decideOutcome only looks
+ * up the leader and logs the decision, tallyVotes measures the tally itself from an empty table.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DecideOutcomeBenchmark
+{
+	@Param({"10", "100", "1000"})
+	int participants;
+
+	@Param({"2", "10", "100"})
+	int options;
+
+	private HotPaths paths;
+	private long logged; // the length of every line logged, so formatting them cannot be optimised away
+
+	@Setup
+	public void setUp() throws ReflectiveOperationException
+	{
+		paths = HotPaths.create(participants, options, false, line -> logged += line.length());
+	}
+
+	@Benchmark
+	public long decideOutcome() throws Throwable
+	{
+		paths.decideOutcome();
+		return logged;
+	}
+
+	@Benchmark
+	public int tallyVotes()
+	{
+		return paths.tallyVotes();
+	}
+}
@@ -0,0 +1,49 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The coordinator building the DETAILS message for one participant, staging it, logging it and writing it out
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DetailsBenchmark
+{
+	@Param({"10", "100", "1000"})
+	int participants;
+
+	@Param({"text", "binary"})
+	String wire;
+
+	private HotPaths paths;
+	private long logged; // the length of every line logged, so formatting them cannot be optimised away
+
+	@Setup
+	public void setUp() throws ReflectiveOperationException
+	{
+		paths = HotPaths.create(participants, 3, "binary".equals(wire), line -> logged += line.length());
+	}
+
+	@Benchmark
+	public long sendDetails() throws Throwable
+	{
+		paths.sendDetails();
+		return logged;
+	}
+}
@@ -0,0 +1,72 @@
+package bench;
+
+import java.util.function.Consumer;
+
+/**
+ * The hot paths of the protocol as the benchmarks call them. JMH only runs benchmarks in a named package and the
+ * protocol lives in the default package, which no named package can import, so the paths are implemented by
+ * ProtocolFixture in the default package and reached through this interface.
+ */
+public interface HotPaths
+{
+	/**
+	 * Sets up one participant, its coordinator and their loggers over an in-memory network
+	 * @param participants The number of participants in the election, including the one set up
+	 * @param options The number of vote options
+	 * @param binary true to send and receive binary frames rather than text lines
+	 * @param sink Receives every log line the loggers format instead of a log file
+	 */
+	static HotPaths create(int participants, int options, boolean binary, Consumer<CharSequence> sink) throws ReflectiveOperationException
+	{
+		return (HotPaths) Class.forName("ProtocolFixture")
+		                       .getConstructor(int.class, int.class, boolean.class, Consumer.class)
+		                       .newInstance(participants, options, binary, sink);
+	}
+
+	/**
+	 * Reads one VOTE message carrying the vote of every other participant, as ParticipantListener.run does with each
+	 * line or frame it receives
+	 */
+	void receiveVotes() throws Throwable;
+
+	/**
+	 * Builds and stages the DETAILS message for one participant, as Coordinator.ParticipantHandler does for each
+	 */
+	void sendDetails() throws Throwable;
+
+	/**
+	 * Decides the outcome of an election whose votes are all known, with Participant.decideOutcome
+	 */
+	void decideOutcome() throws Throwable;
+
+	/**
+	 * Records the vote of every participant in an empty VoteTable and merges them, the tally decideOutcome relies on
+	 * @return the winning option
+	 */
+	int tallyVotes();
+
+	/**
+	 * Formats the log line of a ParticipantLogger.votesReceived event for a message carrying every vote
+	 */
+	void logVotesReceived();
+
+	/**
+	 * Formats the log line of a ParticipantLogger.votesSent event for a message carrying every vote
+	 */
+	void logVotesSent();
+
+	/**
+	 * Formats the log line of a ParticipantLogger.outcomeDecided event
+	 */
+	void logOutcomeDecided();
+
+	/**
+	 * Formats the log line of a CoordinatorLogger.detailsSent event
+	 */
+	void logDetailsSent();
+
+	/**
+	 * Formats the log line of a CoordinatorLogger.outcomeReceived event
+	 */
+	void logOutcomeReceived();
+}
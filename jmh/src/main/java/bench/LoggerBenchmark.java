@@ -0,0 +1,75 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Formatting the text log lines of the busiest ParticipantLogger and CoordinatorLogger events, without writing them
+ * anywhere. The vote events carry the vote of every participant.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LoggerBenchmark
+{
+	@Param({"10", "100", "1000"})
+	int participants;
+
+	private HotPaths paths;
+	private long logged; // the length of every line logged, so formatting them cannot be optimised away
+
+	@Setup
+	public void setUp() throws ReflectiveOperationException
+	{
+		paths = HotPaths.create(participants, 3, false, line -> logged += line.length());
+	}
+
+	@Benchmark
+	public long votesReceived()
+	{
+		paths.logVotesReceived();
+		return logged;
+	}
+
+	@Benchmark
+	public long votesSent()
+	{
+		paths.logVotesSent();
+		return logged;
+	}
+
+	@Benchmark
+	public long outcomeDecided()
+	{
+		paths.logOutcomeDecided();
+		return logged;
+	}
+
+	@Benchmark
+	public long detailsSent()
+	{
+		paths.logDetailsSent();
+		return logged;
+	}
+
+	@Benchmark
+	public long outcomeReceived()
+	{
+		paths.logOutcomeReceived();
+		return logged;
+	}
+}
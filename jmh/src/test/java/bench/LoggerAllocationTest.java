@@ -0,0 +1,69 @@
+package bench;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.lang.management.ManagementFactory;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import com.sun.management.ThreadMXBean;
+
+/**
+ * Checks that formatting the busiest ParticipantLogger and CoordinatorLogger events allocates nothing once the JIT has
+ * compiled them, by measuring the bytes the thread allocates over many calls with ThreadMXBean. LoggerBenchmark with
+ * -prof gc reports the same as gc.alloc.rate.norm.
+ */
+public class LoggerAllocationTest
+{
+	private static final int PARTICIPANTS = 100;
+	private static final int WARMUP = 50_000; // calls before measuring, enough for the JIT to compile the path
+	private static final int CALLS = 10_000; // calls measured
+
+	private static HotPaths paths;
+	private static long logged; // the length of every line logged, so formatting them cannot be optimised away
+
+	@BeforeAll
+	public static void setUp() throws ReflectiveOperationException
+	{
+		paths = HotPaths.create(PARTICIPANTS, 3, false, line -> logged += line.length());
+	}
+
+	@Test
+	public void votesSentAllocatesNothing()
+	{
+		assertEquals(0, bytesPerCall(paths::logVotesSent), "bytes allocated per votesSent");
+	}
+
+	@Test
+	public void votesReceivedAllocatesNothing()
+	{
+		assertEquals(0, bytesPerCall(paths::logVotesReceived), "bytes allocated per votesReceived");
+	}
+
+	@Test
+	public void detailsSentAllocatesNothing()
+	{
+		assertEquals(0, bytesPerCall(paths::logDetailsSent), "bytes allocated per detailsSent");
+	}
+
+	/**
+	 * @return the bytes the current thread allocates per call of an event once it has been warmed up, rounded down so
+	 *         the few bytes the measurement itself may cost do not count
+	 */
+	private static long bytesPerCall(Runnable event)
+	{
+		ThreadMXBean threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+		for(int i = 0; i < WARMUP; i++)
+		{
+			event.run();
+		}
+		long before = threads.getCurrentThreadAllocatedBytes();
+		for(int i = 0; i < CALLS; i++)
+		{
+			event.run();
+		}
+		long allocated = threads.getCurrentThreadAllocatedBytes() - before;
+		return logged > 0 ? allocated / CALLS : -1;
+	}
+}
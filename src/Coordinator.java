@@ -1,13 +1,32 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
 
 public class Coordinator extends Thread
 {
@@ -15,19 +34,50 @@ public class Coordinator extends Thread
 	private final int loggerPort; // logger server is listening on
 	private final int parts; // number of participants
 	private final int timeout; // timeout in milliseconds <- used when waiting for a message from a participant to decide whether that participant has failed.
-	private final String[] options; // set (no duplicates) of options
+	private final String[] options; // set (no duplicates) of options, the position of each is the index participants vote with
+	private final int heartbeatSilence; // how long a participant sending heartbeats may go unheard, 0 if heartbeats are off
+	private final boolean nio; // -Dcoordinator.mode=nio runs every participant on one selector thread instead of a thread each, over TCP only
 
+	private final Transport transport; // accepts the connections of the participants
 	private CoordinatorLogger logger;
+	private Metrics metrics; // exposed over JMX
+	private Metrics.Histogram outcomeLatencies; // from sending a participant the options to receiving its outcome
+	private LongAdder queuedWrites; // messages staged for the channels in nio mode and not yet written
+	private volatile long optionsSent; // System.nanoTime() when the options of the single election were sent
+	private final Map<Integer, Long> ballotStarts = new HashMap<>(); // System.nanoTime() when each ballot in progress was started
 
 	private ServerSocket serverSocket; // the socket of this coordinator
+	private ServerSocketChannel serverChannel; // the channel of this coordinator when running in nio mode
+	private Selector selector; // multiplexes the server channel and all participant channels in nio mode
+	private int openChannels; // number of participant channels the selector is still serving
 
-	private HashMap<ParticipantHandler, Socket> participantSockets = new HashMap<>(); // map of the threads handling participants to the sockets they are using
+	private HashMap<ParticipantConnection, Socket> participantSockets = new HashMap<>(); // map of the connections to participants to the sockets they are using
 	private List<Integer> participants = new ArrayList<>(); // list of the participant's ports
 
-	private String outcome;
-	private List<String> outcomeParticipants = new ArrayList<>();
+	private final OutcomeAggregator outcomes = new OutcomeAggregator(Integer.getInteger("coordinator.quorum", 0)); // -Dcoordinator.quorum=<n> decides once n participants agree
+	private final Set<Integer> reportedParticipants = ConcurrentHashMap.newKeySet(); // participants that have sent their OUTCOME
+
+	private final int ballotCount = Integer.getInteger("coordinator.ballots", 1); // -Dcoordinator.ballots=<n> runs n numbered ballots over the same connections instead of one election
+	private final int concurrentBallots = Math.max(1, Integer.getInteger("coordinator.concurrent", 1)); // -Dcoordinator.concurrent=<k> keeps up to k of them in progress at once
+	private final Map<Integer, Set<Integer>> ballotReports = new HashMap<>(); // the participants that have reported each ballot in progress
+	private final Map<Integer, String> ballotOutcomes = new HashMap<>(); // the first outcome reported for each ballot in progress
+	private final Set<Integer> liveParticipants = new HashSet<>(); // the participants still connected, whose outcomes a ballot waits for
+	private int ballotsStarted; // the id of the last ballot started
+	private int ballotsFinished;
+	private long ballotsStart; // when the first ballot was started
+
+	private static final long NO_DEADLINE = Long.MAX_VALUE; // a connection that is not expected to send anything yet
 
 	private Coordinator(String[] args) throws ArgumentQuantityException
+	{
+		this(args, Transport.TCP, null);
+	}
+
+	/**
+	 * @param transport How to accept the participants' connections
+	 * @param logger The logger to use, or null to initialise the logger of this process
+	 */
+	Coordinator(String[] args, Transport transport, CoordinatorLogger logger) throws ArgumentQuantityException
 	{
 		if (args.length < 5)
 		{
@@ -38,15 +88,38 @@ public class Coordinator extends Thread
 		this.loggerPort = Integer.parseInt(args[1]);
 		this.parts = Integer.parseInt(args[2]);
 		this.timeout = Integer.parseInt(args[3]);
-		this.options = Arrays.copyOfRange(args, 4, args.length);
+		this.heartbeatSilence = WireProtocol.heartbeatSilence(timeout);
+		this.options = new LinkedHashSet<>(Arrays.asList(args).subList(4, args.length)).toArray(new String[0]); // a repeated option would get two indices
 		System.out.println("Running with C: " + this.coordinatorPort + ", L: " + this.loggerPort + ", P: " + this.parts + ", T: "
 				           + this.timeout + ", O: " + Arrays.toString(this.options));
+		this.transport = transport;
+		this.nio = transport == Transport.TCP && "nio".equals(System.getProperty("coordinator.mode"));
+		this.logger = logger;
 		try
 		{
-			CoordinatorLogger.initLogger(loggerPort, coordinatorPort, timeout);
-			logger = CoordinatorLogger.getLogger();
+			if(logger == null)
+			{
+				CoordinatorLogger.initLogger(loggerPort, coordinatorPort, timeout);
+				this.logger = CoordinatorLogger.getLogger();
+			}
+			metrics = new Metrics("Coordinator", coordinatorPort);
+			outcomeLatencies = metrics.histogram("OutcomeLatency");
+			queuedWrites = metrics.queue("Queue.writeBuffers");
+			metrics.gauge("Queue.logBytes", this.logger::queuedBytes);
+			metrics.gauge("TimeToDecisionMicros", outcomes::decisionMicros);
 
-			serverSocket = new ServerSocket(coordinatorPort);
+			if(nio)
+			{
+				selector = Selector.open();
+				serverChannel = ServerSocketChannel.open();
+				serverChannel.bind(new InetSocketAddress(coordinatorPort));
+				serverChannel.configureBlocking(false);
+				serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+			}
+			else
+			{
+				serverSocket = transport.listen(coordinatorPort);
+			}
 			System.out.println("Coordinator > Initialised and listening on port " + coordinatorPort + ", waiting for " + parts + " participants, options: " + Arrays.toString(options));
 		}
 		catch(IOException e)
@@ -63,30 +136,436 @@ public class Coordinator extends Thread
 	{
 		// Wait to connect with the number of participants specified in the args
 		logger.startedListening(coordinatorPort);
+		Thread watcher = new Thread(this::watchDeadlines, "Coordinator deadlines");
+		watcher.setDaemon(true);
+		watcher.start();
 		Socket socket;
 		while(participantSockets.size() < parts)
 		{
 			socket = serverSocket.accept();
 			logger.connectionAccepted(socket.getPort());
 			socket.setSoLinger(true, 0);
+			WireProtocol.configure(socket);
 			System.out.println("Coordinator > A participant has connected to the coordinator");
 
 			// Create a thread to handle the participant and add it to the map
 			ParticipantHandler thread = new ParticipantHandler(socket);
+			thread.setDeadline(System.currentTimeMillis() + timeout); // the JOIN should follow the connection promptly
 			synchronized(participantSockets) // only one thread can be interacting with 'participants' at a time
 			{
 				participantSockets.put(thread, socket);
 			}
-			thread.start();
+			Workers.start(thread);
 		}
 		System.out.println("Coordinator > All participants have connected to the coordinator");
 	}
 
+	/**
+	 * Closes the connection of every participant that misses its deadline, its handler then finds the connection lost.
+	 * The handlers read without a timeout, as a timed out read cannot be resumed once part of a message has been read.
+	 * Runs until every participant has connected and every connection is closed.
+	 */
+	private void watchDeadlines()
+	{
+		long poll = Math.max(1, timeout / 10); // wake up at least this often to notice a deadline set by another thread
+		try
+		{
+			while(true)
+			{
+				long now = System.currentTimeMillis();
+				long next = now + poll;
+				synchronized(participantSockets)
+				{
+					boolean open = false;
+					for(ParticipantConnection connection : participantSockets.keySet())
+					{
+						ParticipantHandler handler = (ParticipantHandler) connection;
+						if(handler.socket.isClosed())
+						{
+							continue;
+						}
+						open = true;
+						long expiry = expiry(handler);
+						if(expiry <= now)
+						{
+							handler.expire();
+						}
+						else
+						{
+							next = Math.min(next, expiry);
+						}
+					}
+					if(!open && participantSockets.size() >= parts)
+					{
+						return;
+					}
+				}
+				Thread.sleep(next - now);
+			}
+		}
+		catch(InterruptedException e)
+		{
+			// the coordinator is going away
+		}
+	}
+
+	/**
+	 * Accept participants and handle all of their messages on this thread using the selector,
+	 * returns once every participant has joined and then disconnected
+	 * @throws IOException if there is a problem with the selector or server channel
+	 */
+	private void runEventLoop() throws IOException
+	{
+		logger.startedListening(coordinatorPort);
+		int accepted = 0;
+		long nextDeadline = NO_DEADLINE;
+		while(accepted < parts || openChannels > 0)
+		{
+			selector.select(Math.max(1, Math.min(timeout, nextDeadline - System.currentTimeMillis())));
+			Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+			while(keys.hasNext())
+			{
+				SelectionKey key = keys.next();
+				keys.remove();
+				if(!key.isValid())
+				{
+					continue;
+				}
+				if(key.isAcceptable())
+				{
+					SocketChannel channel = serverChannel.accept();
+					if(channel == null)
+					{
+						continue;
+					}
+					logger.connectionAccepted(channel.socket().getPort());
+					channel.socket().setSoLinger(true, 0);
+					WireProtocol.configure(channel.socket());
+					channel.configureBlocking(false);
+					System.out.println("Coordinator > A participant has connected to the coordinator");
+
+					ChannelHandler handler = new ChannelHandler(channel);
+					handler.setDeadline(System.currentTimeMillis() + timeout); // the JOIN should follow the connection promptly
+					handler.key = channel.register(selector, SelectionKey.OP_READ, handler);
+					participantSockets.put(handler, channel.socket());
+					openChannels += 1;
+					if(++accepted >= parts) // stop accepting once the required number have connected
+					{
+						serverChannel.keyFor(selector).cancel();
+						serverChannel.close();
+						System.out.println("Coordinator > All participants have connected to the coordinator");
+					}
+					continue;
+				}
+				ChannelHandler handler = (ChannelHandler) key.attachment();
+				if(key.isWritable())
+				{
+					handler.flush();
+				}
+				if(key.isValid() && key.isReadable())
+				{
+					handler.read();
+				}
+			}
+
+			// Close any participant that has missed its deadline and find the next one to wake up for
+			long now = System.currentTimeMillis();
+			nextDeadline = NO_DEADLINE;
+			for(ParticipantConnection connection : participantSockets.keySet())
+			{
+				ChannelHandler handler = (ChannelHandler) connection;
+				if(!handler.channel.isOpen())
+				{
+					continue;
+				}
+				long expiry = expiry(handler);
+				if(expiry <= now)
+				{
+					connectionLost(handler);
+					handler.close();
+				}
+				else
+				{
+					nextDeadline = Math.min(nextDeadline, expiry);
+				}
+			}
+		}
+		selector.close();
+	}
+
+	/**
+	 * Notes that a participant has been heard from. A participant sending heartbeats sends one straight after its JOIN and
+	 * another whenever its connection is idle, so from its first on it is taken to have crashed if it goes unheard for the
+	 * heartbeat silence, while one with heartbeats off is left to its deadlines.
+	 */
+	private void heard(ParticipantConnection connection, boolean heartbeat)
+	{
+		if(heartbeat || connection.getLastHeard() != 0)
+		{
+			connection.setLastHeard(System.currentTimeMillis());
+		}
+	}
+
+	/**
+	 * @return the time in milliseconds by which the participant must be heard from, the sooner of its deadline and the
+	 *         end of the heartbeat silence
+	 */
+	private long expiry(ParticipantConnection connection)
+	{
+		long lastHeard = connection.getLastHeard();
+		if(heartbeatSilence == 0 || lastHeard == 0)
+		{
+			return connection.getDeadline();
+		}
+		return Math.min(connection.getDeadline(), lastHeard + heartbeatSilence);
+	}
+
+	/**
+	 * Handles a single text message received from a participant
+	 * @param connection The connection the message was received on
+	 * @param line The message received
+	 */
+	private void handleMessage(ParticipantConnection connection, String line) throws TooManyParticipantsException, Participant.WrongMessageException
+	{
+		String[] input = line.split(" ");
+		metrics.received(WireProtocol.typeOf(input[0]), line.length() + 1);
+		heard(connection, input[0].equals("HEARTBEAT"));
+		if(input[0].equals("HEARTBEAT"))
+		{
+			// nothing to do, the participant is still there
+		}
+		else if(input[0].equals("JOIN"))
+		{
+			joinReceived(connection, Integer.parseInt(input[1]));
+		}
+		else if(input[0].equals("OUTCOME"))
+		{
+			List<Integer> voters = new ArrayList<>();
+			for(int i = 2; i < input.length; i++)
+			{
+				voters.add(Integer.parseInt(input[i]));
+			}
+			outcomeReceived(connection, input[1], voters);
+		}
+		else if(input[0].equals("BALLOT_OUTCOME"))
+		{
+			List<Integer> voters = new ArrayList<>();
+			for(int i = 3; i < input.length; i++)
+			{
+				voters.add(Integer.parseInt(input[i]));
+			}
+			ballotOutcomeReceived(connection, Integer.parseInt(input[1]), input[2], voters);
+		}
+		else
+		{
+			throw new Participant.WrongMessageException("JOIN/OUTCOME", input[0]);
+		}
+	}
+
+	/**
+	 * Handles a single binary frame received from a participant
+	 * @param connection The connection the frame was received on
+	 * @param frame The frame positioned at its message type
+	 */
+	private void handleFrame(ParticipantConnection connection, ByteBuffer frame) throws TooManyParticipantsException, Participant.WrongMessageException
+	{
+		byte type = frame.get();
+		metrics.received(type, 4 + frame.limit());
+		heard(connection, type == WireProtocol.HEARTBEAT);
+		if(type == WireProtocol.HEARTBEAT)
+		{
+			// nothing to do, the participant is still there
+		}
+		else if(type == WireProtocol.JOIN)
+		{
+			joinReceived(connection, frame.getInt());
+		}
+		else if(type == WireProtocol.OUTCOME || type == WireProtocol.BALLOT_OUTCOME)
+		{
+			int ballot = type == WireProtocol.BALLOT_OUTCOME ? frame.getInt() : 0;
+			int option = WireProtocol.getOptionIndex(frame);
+			if(option >= options.length)
+			{
+				throw new Participant.WrongMessageException("an option index below " + options.length, Integer.toString(option));
+			}
+			int count = frame.getInt();
+			List<Integer> voters = new ArrayList<>(count);
+			for(int i = 0; i < count; i++)
+			{
+				voters.add(frame.getInt());
+			}
+			if(type == WireProtocol.OUTCOME)
+			{
+				outcomeReceived(connection, options[option], voters);
+			}
+			else
+			{
+				ballotOutcomeReceived(connection, ballot, options[option], voters);
+			}
+		}
+		else
+		{
+			throw new Participant.WrongMessageException("JOIN/OUTCOME", "frame type " + type);
+		}
+	}
+
+	/**
+	 * @param connection The connection the JOIN was received on
+	 * @param port The port the participant is listening on
+	 */
+	private void joinReceived(ParticipantConnection connection, int port) throws TooManyParticipantsException
+	{
+		connection.setPort(port);
+		connection.setDeadline(NO_DEADLINE); // nothing more is expected until the options are sent
+		logger.joinReceived(connection.getPort());
+		addParticipant(connection.getPort());
+	}
+
+	/**
+	 * @param connection The connection the OUTCOME was received on
+	 * @param vote The outcome decided by the participant
+	 * @param voters The participants whose votes the outcome was based on
+	 */
+	private void outcomeReceived(ParticipantConnection connection, String vote, List<Integer> voters)
+	{
+		logger.outcomeReceived(connection.getPort(), vote);
+		outcomeLatencies.record(System.nanoTime() - optionsSent);
+		reportedParticipants.add(connection.getPort());
+		connection.setDeadline(NO_DEADLINE);
+		outcomes.outcomeReceived(connection.getPort(), vote, voters);
+	}
+
+	/**
+	 * Records the outcome of a numbered ballot, the ballot is finished once every participant still connected has
+	 * reported it and the next one is started in its place
+	 * @param connection The connection the BALLOT_OUTCOME was received on
+	 * @param ballot The ballot the outcome is for
+	 * @param vote The outcome decided by the participant
+	 * @param voters The participants whose votes the outcome was based on
+	 */
+	private synchronized void ballotOutcomeReceived(ParticipantConnection connection, int ballot, String vote, List<Integer> voters)
+	{
+		logger.outcomeReceived(connection.getPort(), vote);
+		Set<Integer> reported = ballotReports.get(ballot);
+		if(reported == null)
+		{
+			System.out.println("Coordinator > Ignoring outcome of ballot " + ballot + " from " + connection.getPort() + ", it is not in progress");
+			return;
+		}
+		reported.add(connection.getPort());
+		outcomeLatencies.record(System.nanoTime() - ballotStarts.get(ballot));
+		String first = ballotOutcomes.putIfAbsent(ballot, vote);
+		if(first != null && !first.equals(vote))
+		{
+			System.out.println("Coordinator > Ballot " + ballot + " > Participant " + connection.getPort() + " decided " + vote + " but another decided " + first + " from " + voters);
+		}
+		connection.setDeadline(awaitingOutcome(connection.getPort()) ? System.currentTimeMillis() + outcomeWindow() : NO_DEADLINE);
+		finishBallots();
+	}
+
+	/**
+	 * @return true if a participant has a ballot in progress it has not reported yet
+	 */
+	private boolean awaitingOutcome(int port)
+	{
+		for(Set<Integer> reported : ballotReports.values())
+		{
+			if(!reported.contains(port))
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Finishes every ballot that all of the participants still connected have reported and starts the ones to replace
+	 * them, once the last ballot is finished the connections are closed
+	 */
+	private void finishBallots()
+	{
+		Iterator<Map.Entry<Integer, Set<Integer>>> entries = ballotReports.entrySet().iterator();
+		while(entries.hasNext())
+		{
+			Map.Entry<Integer, Set<Integer>> entry = entries.next();
+			if(entry.getValue().containsAll(liveParticipants))
+			{
+				entries.remove();
+				ballotStarts.remove(entry.getKey());
+				System.out.println("Coordinator > Ballot " + entry.getKey() + " > Outcome: " + ballotOutcomes.remove(entry.getKey()));
+				ballotsFinished += 1;
+			}
+		}
+		while(ballotsStarted < ballotCount && ballotReports.size() < concurrentBallots)
+		{
+			startBallot();
+		}
+		flushAll(); // the options of every ballot started go out together
+		if(ballotsFinished == ballotCount)
+		{
+			long elapsed = Math.max(1, System.currentTimeMillis() - ballotsStart);
+			System.out.println("Coordinator > " + ballotCount + " ballots in " + elapsed + "ms, " + (ballotCount * 1000L / elapsed) + " ballots/s");
+			synchronized(participantSockets)
+			{
+				for(ParticipantConnection connection : participantSockets.keySet())
+				{
+					connection.setDeadline(NO_DEADLINE);
+					connection.finish();
+				}
+			}
+		}
+	}
+
+	/**
+	 * To be called when a connection to a participant closes or misses its deadline,
+	 * the participant has crashed if it joined but never reported an outcome
+	 * @param connection The connection that was lost
+	 */
+	private void connectionLost(ParticipantConnection connection)
+	{
+		if(ballotCount > 1)
+		{
+			ballotConnectionLost(connection);
+		}
+		else if(connection.getPort() != 0 && !reportedParticipants.contains(connection.getPort()))
+		{
+			metrics.peerSuspected();
+			logger.participantCrashed(connection.getPort());
+			System.out.println("Coordinator > Participant " + connection.getPort() + " has crashed");
+			outcomes.participantLost(connection.getPort());
+		}
+	}
+
+	/**
+	 * With numbered ballots a participant has crashed if it leaves before the last ballot is finished, the ballots in
+	 * progress stop waiting for its outcome
+	 */
+	private synchronized void ballotConnectionLost(ParticipantConnection connection)
+	{
+		if(!liveParticipants.remove(connection.getPort()) || ballotsFinished == ballotCount)
+		{
+			return;
+		}
+		metrics.peerSuspected();
+		logger.participantCrashed(connection.getPort());
+		System.out.println("Coordinator > Participant " + connection.getPort() + " has crashed");
+		finishBallots();
+	}
+
+	/**
+	 * @return how long a participant may take to report its outcome once it has the options,
+	 *         it may wait up to the timeout to connect to its peers and then for each of its rounds
+	 */
+	private long outcomeWindow()
+	{
+		return (long) (parts + 1) * timeout;
+	}
+
 	/**
 	 * Adds the participant to the vote pool and if the required number has been reached, send out the details
 	 * @param port The port number of the participant that sent the JOIN message
 	 */
-	private void addParticipant(int port) throws TooManyParticipantsException
+	private synchronized void addParticipant(int port) throws TooManyParticipantsException
 	{
 		if(participants.size() < parts)
 		{
@@ -98,8 +577,21 @@ public class Coordinator extends Thread
 				System.out.println("Coordinator > Sending out details to participants");
 
 				// 3. SEND REQUEST FOR VOTES to each participant <- message: "VOTE_OPTIONS [option]"
-				sendOptions();
-				System.out.println("Coordinator > Sending out options to participants");
+				//    or "BALLOT_OPTIONS ballot [option]" for each ballot when running numbered ballots
+				if(ballotCount > 1)
+				{
+					liveParticipants.addAll(participants);
+					ballotsStart = System.currentTimeMillis();
+					System.out.println("Coordinator > Running " + ballotCount + " ballots, " + concurrentBallots + " at a time");
+					finishBallots();
+				}
+				else
+				{
+					sendOptions();
+					System.out.println("Coordinator > Sending out options to participants");
+				}
+
+				flushAll(); // the details and options go out together
 
 				// 4. RECEIVE VOTES from participants <- message: "OUTCOME outcome [port]"
 			}
@@ -117,9 +609,9 @@ public class Coordinator extends Thread
 	{
 		synchronized(participantSockets)
 		{
-			for(ParticipantHandler thread : participantSockets.keySet())
+			for(ParticipantConnection connection : participantSockets.keySet())
 			{
-				thread.sendDetails();
+				sendDetails(connection);
 			}
 		}
 	}
@@ -134,23 +626,180 @@ public class Coordinator extends Thread
 			message.append(option + " ");
 			votingOptions.add(option);
 		}
+		ByteBuffer frame = WireProtocol.encodeVoteOptions(options);
+		long deadline = System.currentTimeMillis() + outcomeWindow();
+		optionsSent = System.nanoTime();
+		outcomes.start(participants.size(), optionsSent);
+		synchronized(participantSockets)
+		{
+			for(ParticipantConnection connection : participantSockets.keySet())
+			{
+				connection.setDeadline(deadline);
+				if(connection.isBinary())
+				{
+					connection.sendFrame(frame);
+					metrics.sent(WireProtocol.VOTE_OPTIONS, frame.remaining());
+				}
+				else
+				{
+					connection.sendMessage(message.toString());
+					metrics.sent(WireProtocol.VOTE_OPTIONS, message.length() + 1);
+				}
+				logger.voteOptionsSent(connection.getPort(), votingOptions);
+			}
+		}
+	}
+
+	/**
+	 * Sends the options of the next numbered ballot to every participant still connected
+	 */
+	private void startBallot()
+	{
+		int ballot = ++ballotsStarted;
+		ballotReports.put(ballot, new HashSet<>());
+		ballotStarts.put(ballot, System.nanoTime());
+		StringBuilder message = new StringBuilder("BALLOT_OPTIONS " + ballot);
+		for(String option : options)
+		{
+			message.append(" ").append(option);
+		}
+		ByteBuffer frame = WireProtocol.encodeBallotOptions(ballot, options);
+		List<String> votingOptions = Arrays.asList(options);
+		long deadline = System.currentTimeMillis() + outcomeWindow();
 		synchronized(participantSockets)
 		{
-			for(ParticipantHandler thread : participantSockets.keySet())
+			for(ParticipantConnection connection : participantSockets.keySet())
 			{
-				thread.sendMessage(message.toString());
-				logger.voteOptionsSent(thread.thisPort, votingOptions);
+				if(!liveParticipants.contains(connection.getPort()))
+				{
+					continue;
+				}
+				connection.setDeadline(Math.min(connection.getDeadline(), deadline));
+				if(connection.isBinary())
+				{
+					connection.sendFrame(frame);
+					metrics.sent(WireProtocol.BALLOT_OPTIONS, frame.remaining());
+				}
+				else
+				{
+					connection.sendMessage(message.toString());
+					metrics.sent(WireProtocol.BALLOT_OPTIONS, message.length() + 1);
+				}
+				logger.voteOptionsSent(connection.getPort(), votingOptions);
 			}
 		}
 	}
 
-	private class ParticipantHandler extends Thread
+	/**
+	 * Writes out everything sent to the participants since the last flush
+	 */
+	private void flushAll()
+	{
+		synchronized(participantSockets)
+		{
+			for(ParticipantConnection connection : participantSockets.keySet())
+			{
+				connection.flush();
+			}
+		}
+	}
+
+	/**
+	 * Sends the details of all other participants to a participant
+	 * @param connection The connection to the participant
+	 */
+	private void sendDetails(ParticipantConnection connection)
+	{
+		StringBuilder message = new StringBuilder("DETAILS ");
+		List<Integer> details = new ArrayList<>();
+		for(Integer participant : participants)
+		{
+			if(participant != connection.getPort())
+			{
+				message.append(participant + " ");
+				details.add(participant);
+			}
+		}
+
+		if(connection.isBinary())
+		{
+			ByteBuffer frame = WireProtocol.encodeDetails(details);
+			connection.sendFrame(frame);
+			metrics.sent(WireProtocol.DETAILS, frame.remaining());
+		}
+		else
+		{
+			connection.sendMessage(message.toString());
+			metrics.sent(WireProtocol.DETAILS, message.length() + 1);
+		}
+		logger.detailsSent(connection.getPort(), details);
+	}
+
+	/**
+	 * A connection to a single participant, either served by its own thread or by the selector
+	 */
+	private interface ParticipantConnection
+	{
+		int getPort();
+
+		void setPort(int port);
+
+		/**
+		 * @return the time in milliseconds by which the next message must arrive before the participant is deemed to have crashed
+		 */
+		long getDeadline();
+
+		void setDeadline(long deadline);
+
+		/**
+		 * @return the time in milliseconds the participant was last heard from, 0 until it has sent a HEARTBEAT
+		 */
+		long getLastHeard();
+
+		void setLastHeard(long lastHeard);
+
+		/**
+		 * @return true if the participant spoke binary frames rather than text, the coordinator answers in the same way
+		 */
+		boolean isBinary();
+
+		/**
+		 * Stages a message, it is written out by the next flush
+		 */
+		void sendMessage(String message);
+
+		/**
+		 * Stages a frame, it is written out by the next flush
+		 * @param frame An encoded frame, which is not consumed so it can be sent to several participants
+		 */
+		void sendFrame(ByteBuffer frame);
+
+		/**
+		 * Writes out everything staged, in as few writes as the connection allows
+		 */
+		void flush();
+
+		/**
+		 * Closes the sending side once everything sent has been written, the participant closes the connection in turn
+		 */
+		void finish();
+	}
+
+	private class ParticipantHandler extends Thread implements ParticipantConnection
 	{
 		private final Socket socket; // the socket of the participant this thread is handling
-		private final BufferedReader in; // receive messages from the participant
-		private final PrintWriter out;; // send messages to the participant
+		private final BufferedInputStream input; // receive messages from the participant, read as text or frames once the protocol is known
+		private final BufferedReader in; // receive text messages from the participant
+		private final DataInputStream data; // receive binary frames from the participant
+		private final PrintWriter out; // send messages to the participant
+		private final OutputStream rawOut; // send binary frames to the participant, buffered until flushed
 
 		private int thisPort; // the port of the participant this thread is handling
+		private volatile long deadline = NO_DEADLINE; // moved on by the thread that sends the options
+		private volatile long lastHeard; // read by the thread that sends the options
+		private volatile boolean binary; // set from the first byte the participant sends
+		private boolean protocolKnown;
+		private volatile boolean expired; // the connection was closed for missing its deadline
 
 		/**
 		 * Handles the connection to a participant
@@ -162,50 +811,122 @@ public class Coordinator extends Thread
 			this.socket = socket;
 			socket.setSoLinger(true, 0);
 
-			this.in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-			this.out = new PrintWriter(socket.getOutputStream(), true);
+			this.input = new BufferedInputStream(socket.getInputStream());
+			this.in = new BufferedReader(new InputStreamReader(input));
+			this.data = new DataInputStream(input);
+			this.rawOut = new BufferedOutputStream(socket.getOutputStream());
+			this.out = new PrintWriter(rawOut);
 		}
 
 		@Override
 		public void run()
 		{
 			// 1. WAIT FOR PARTICIPANTS to join <- message: "JOIN port"
-			String[] input;
+			ByteBuffer frame = null;
 			while (true)
 			{
 				try
 				{
-					Thread.sleep(timeout);
-					input = in.readLine().split(" ");
-					if(input[0].equals("JOIN"))
+					if(!protocolKnown)
 					{
-						thisPort = Integer.parseInt(input[1]);
-						logger.joinReceived(thisPort);
-						addParticipant(thisPort);
+						binary = WireProtocol.isBinary(WireProtocol.peek(input));
+						protocolKnown = true;
 					}
-					else if(input[0].equals("OUTCOME"))
+					if(binary)
 					{
-						logger.outcomeReceived(thisPort, input[1]);
-						if(!(outcome == null))
+						frame = WireProtocol.readFrame(data, frame);
+						if(frame == null)
 						{
-							outcome = input[1];
-							for(int i = 2; i < input.length; i++)
-							{
-								outcomeParticipants.add(input[i]);
-							}
+							connectionLost(this);
+							break;
 						}
+						handleFrame(this, frame);
+						continue;
 					}
-					else
+					String line = in.readLine();
+					if(line == null)
 					{
-						throw new Participant.WrongMessageException("JOIN/OUTCOME", input[0]);
+						connectionLost(this);
+						break;
 					}
+					handleMessage(this, line);
 				}
-				catch(IOException | TooManyParticipantsException | Participant.WrongMessageException | InterruptedException e)
+				catch(IOException | TooManyParticipantsException | Participant.WrongMessageException e)
 				{
-					e.printStackTrace();
+					if(!expired)
+					{
+						e.printStackTrace();
+					}
+					connectionLost(this);
 					break;
 				}
 			}
+			try
+			{
+				socket.close();
+			}
+			catch(IOException e)
+			{
+				e.printStackTrace();
+			}
+		}
+
+		/**
+		 * Closes the connection of a participant that has missed its deadline, waking the handler from its read
+		 */
+		void expire()
+		{
+			expired = true;
+			try
+			{
+				socket.close();
+			}
+			catch(IOException e)
+			{
+				e.printStackTrace();
+			}
+		}
+
+		@Override
+		public int getPort()
+		{
+			return thisPort;
+		}
+
+		@Override
+		public void setPort(int port)
+		{
+			thisPort = port;
+		}
+
+		@Override
+		public long getDeadline()
+		{
+			return deadline;
+		}
+
+		@Override
+		public void setDeadline(long deadline)
+		{
+			this.deadline = deadline;
+		}
+
+		@Override
+		public long getLastHeard()
+		{
+			return lastHeard;
+		}
+
+		@Override
+		public void setLastHeard(long lastHeard)
+		{
+			this.lastHeard = lastHeard;
+		}
+
+		@Override
+		public boolean isBinary()
+		{
+			return binary;
 		}
 
 		/**
@@ -215,26 +936,316 @@ public class Coordinator extends Thread
 		public void sendMessage(String message)
 		{
 			out.println(message);
+			if(WireProtocol.flushEachMessage())
+			{
+				flush();
+			}
+		}
+
+		@Override
+		public void sendFrame(ByteBuffer frame)
+		{
+			synchronized(rawOut)
+			{
+				try
+				{
+					WireProtocol.put(rawOut, frame);
+				}
+				catch(IOException e)
+				{
+					e.printStackTrace();
+				}
+			}
+			if(WireProtocol.flushEachMessage())
+			{
+				flush();
+			}
 		}
 
+		@Override
+		public void flush()
+		{
+			synchronized(rawOut)
+			{
+				out.flush(); // also flushes rawOut underneath
+			}
+		}
+
+		@Override
+		public void finish()
+		{
+			if(socket.isClosed()) // the participant has crashed
+			{
+				return;
+			}
+			try
+			{
+				flush();
+				socket.shutdownOutput();
+			}
+			catch(IOException e)
+			{
+				e.printStackTrace();
+			}
+		}
+	}
+
+	private class ChannelHandler implements ParticipantConnection
+	{
+		private final SocketChannel channel; // the channel of the participant this handler is serving
+		private ByteBuffer readBuffer = ByteBuffer.allocate(1024); // bytes read but not yet parsed, grown for long messages
+		private final ArrayDeque<ByteBuffer> writeQueue = new ArrayDeque<>(); // messages staged or waiting for the channel to become writable
+		private ByteBuffer[] gather = new ByteBuffer[0]; // reused to hand the queue to a gathering write
+		private SelectionKey key;
+
+		private int thisPort; // the port of the participant this handler is serving
+		private long deadline = NO_DEADLINE; // only touched by the selector thread
+		private long lastHeard;
+		private Boolean binary; // null until the first byte has been read
+		private boolean finishing; // shut down the output once the write queue is empty
+
 		/**
-		 * Sends the details of all other participants to this participant
+		 * Handles the connection to a participant on the selector thread
+		 * @param channel The non-blocking channel of the connection
 		 */
-		public void sendDetails()
+		public ChannelHandler(SocketChannel channel)
 		{
-			StringBuilder message = new StringBuilder("DETAILS ");
-			List<Integer> details = new ArrayList<>();
-			for(Integer participant : participants)
+			this.channel = channel;
+		}
+
+		/**
+		 * Reads whatever is available and handles each complete line
+		 */
+		public void read()
+		{
+			try
 			{
-				if(participant != thisPort)
+				if(channel.read(readBuffer) < 0)
+				{
+					connectionLost(this);
+					close();
+					return;
+				}
+				readBuffer.flip();
+				if(binary == null && readBuffer.hasRemaining())
+				{
+					binary = WireProtocol.isBinary(readBuffer.get(readBuffer.position()));
+				}
+				if(Boolean.TRUE.equals(binary))
 				{
-					message.append(participant + " ");
-					details.add(participant);
+					readFrames();
+				}
+				else
+				{
+					readLines();
+				}
+				readBuffer.compact();
+				if(!readBuffer.hasRemaining()) // make room for a message longer than the buffer
+				{
+					ByteBuffer larger = ByteBuffer.allocate(readBuffer.capacity() * 2);
+					readBuffer.flip();
+					larger.put(readBuffer);
+					readBuffer = larger;
 				}
 			}
+			catch(IOException | TooManyParticipantsException | Participant.WrongMessageException e)
+			{
+				e.printStackTrace();
+				connectionLost(this);
+				close();
+			}
+		}
 
-			out.println(message);
-			logger.detailsSent(thisPort, details);
+		/**
+		 * Handles each complete line in the read buffer, leaving it positioned at the start of any partial line
+		 */
+		private void readLines() throws TooManyParticipantsException, Participant.WrongMessageException
+		{
+			int start = readBuffer.position();
+			for(int i = start; i < readBuffer.limit(); i++)
+			{
+				if(readBuffer.get(i) == '\n')
+				{
+					int end = (i > start && readBuffer.get(i - 1) == '\r') ? i - 1 : i;
+					byte[] bytes = new byte[end - start];
+					readBuffer.get(start, bytes);
+					handleMessage(this, new String(bytes, StandardCharsets.UTF_8));
+					start = i + 1;
+				}
+			}
+			readBuffer.position(start);
+		}
+
+		/**
+		 * Handles each complete frame in place in the read buffer, leaving it positioned at the start of any partial frame
+		 */
+		private void readFrames() throws IOException, TooManyParticipantsException, Participant.WrongMessageException
+		{
+			int length;
+			while((length = WireProtocol.completeFrame(readBuffer)) >= 0)
+			{
+				int end = readBuffer.position() + 4 + length;
+				int limit = readBuffer.limit();
+				readBuffer.position(readBuffer.position() + 4).limit(end);
+				handleFrame(this, readBuffer);
+				readBuffer.limit(limit).position(end);
+			}
+		}
+
+		/**
+		 * Writes as much of the queued output as the channel will take, all of the queued messages at once
+		 */
+		@Override
+		public void flush()
+		{
+			try
+			{
+				if(!writeQueue.isEmpty())
+				{
+					int count = writeQueue.size();
+					gather = writeQueue.toArray(gather);
+					channel.write(gather, 0, count);
+					while(!writeQueue.isEmpty() && !writeQueue.peek().hasRemaining())
+					{
+						writeQueue.poll();
+						queuedWrites.decrement();
+					}
+					Arrays.fill(gather, null);
+				}
+				if(!writeQueue.isEmpty())
+				{
+					key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+					return;
+				}
+				key.interestOps(SelectionKey.OP_READ);
+				if(finishing)
+				{
+					channel.shutdownOutput();
+				}
+			}
+			catch(IOException e)
+			{
+				e.printStackTrace();
+				connectionLost(this);
+				close();
+			}
+		}
+
+		private void close()
+		{
+			if(!channel.isOpen())
+			{
+				return;
+			}
+			openChannels -= 1;
+			key.cancel();
+			try
+			{
+				channel.close();
+			}
+			catch(IOException e)
+			{
+				e.printStackTrace();
+			}
+		}
+
+		@Override
+		public int getPort()
+		{
+			return thisPort;
+		}
+
+		@Override
+		public void setPort(int port)
+		{
+			thisPort = port;
+		}
+
+		@Override
+		public long getDeadline()
+		{
+			return deadline;
+		}
+
+		@Override
+		public void setDeadline(long deadline)
+		{
+			this.deadline = deadline;
+		}
+
+		@Override
+		public long getLastHeard()
+		{
+			return lastHeard;
+		}
+
+		@Override
+		public void setLastHeard(long lastHeard)
+		{
+			this.lastHeard = lastHeard;
+		}
+
+		@Override
+		public boolean isBinary()
+		{
+			return Boolean.TRUE.equals(binary);
+		}
+
+		@Override
+		public void sendMessage(String message)
+		{
+			if(!channel.isOpen())
+			{
+				return;
+			}
+			writeQueue.add(WireProtocol.encodeLine(message));
+			queuedWrites.increment();
+			if(WireProtocol.flushEachMessage())
+			{
+				flush();
+			}
+		}
+
+		@Override
+		public void sendFrame(ByteBuffer frame)
+		{
+			if(!channel.isOpen())
+			{
+				return;
+			}
+			writeQueue.add(frame.duplicate());
+			queuedWrites.increment();
+			if(WireProtocol.flushEachMessage())
+			{
+				flush();
+			}
+		}
+
+		@Override
+		public void finish()
+		{
+			if(!channel.isOpen())
+			{
+				return;
+			}
+			finishing = true;
+			flush();
+		}
+	}
+
+	/**
+	 * Accepts the participants and runs the election or the numbered ballots, in nio mode returning once every
+	 * participant has disconnected and otherwise once every participant has connected, leaving the handlers running
+	 */
+	void coordinate() throws IOException
+	{
+		if(nio)
+		{
+			runEventLoop();
+		}
+		else
+		{
+			waitForParticipants();
 		}
 	}
 
@@ -271,9 +1282,10 @@ public class Coordinator extends Thread
 		try
 		{
 			Coordinator coordinator = new Coordinator(args);
-			coordinator.waitForParticipants();
+			coordinator.coordinate();
+			Workers.joinAll();
 		}
-		catch(ArgumentQuantityException | IOException e)
+		catch(ArgumentQuantityException | IOException | InterruptedException e)
 		{
 			e.printStackTrace();
 		}
@@ -1,14 +1,14 @@
 import java.io.IOException;
-import java.io.PrintStream;
 import java.util.List;
-import java.util.stream.Collectors;
 
 public class CoordinatorLogger {
 	
 	private static CoordinatorLogger logger = null;
 	
-	private final PrintStream ps;
+	private final LogFile logFile; // written by its own thread, null when events are logged in binary
+	private final EventLog events; // null unless -Dlogger.format=binary
 	private final UDPLoggerClient udpLoggerClient;
+	private final ThreadLocal<StringBuilder> lines = ThreadLocal.withInitial(() -> new StringBuilder(256)); // reused by each thread to build its lines, so logging creates no garbage
 	
 	/**
 	 * Initialises the Logger for the Coordinator
@@ -34,19 +34,60 @@ public class CoordinatorLogger {
 		return logger;
 	}
 	
+	/**
+	 * A logger that writes nothing, for a Coordinator simulated in one JVM, subclasses override the events they need
+	 */
+	protected CoordinatorLogger() {
+		udpLoggerClient = null;
+		logFile = null;
+		events = null;
+	}
+	
 	private CoordinatorLogger(int loggerServerPort, int processId, int timeout) throws IOException {
 		udpLoggerClient = new UDPLoggerClient(loggerServerPort, processId, timeout);
-		ps = new PrintStream("coordinator_" + System.currentTimeMillis() + ".log");
+		if (EventLog.BINARY) {
+			events = new EventLog("coordinator_" + System.currentTimeMillis() + ".events", 'C', processId);
+			logFile = null;
+		} else {
+			events = null;
+			logFile = new LogFile("coordinator_" + System.currentTimeMillis() + ".log");
+		}
 	}
 	
-	protected void logMessage(String message) {
-		ps.println(message);
+	/**
+	 * @return this thread's line builder, emptied and started with the tag of the Coordinator
+	 */
+	private StringBuilder line() {
+		StringBuilder line = lines.get();
+		line.setLength(0);
+		return line.append("[C] ");
+	}
+
+	/**
+	 * @return the bytes of log messages waiting to be written to the local log or sent to the Logger
+	 */
+	public long queuedBytes() {
+		long queued = udpLoggerClient != null ? udpLoggerClient.getQueuedBytes() : 0;
+		if (logFile != null)
+			queued += logFile.queuedBytes();
+		if (events != null)
+			queued += events.queuedBytes();
+		return queued;
+	}
+
+	protected void logMessage(CharSequence message) {
+		if (logFile != null)
+			logFile.println(message);
 		if (udpLoggerClient != null)
 			try {
 				udpLoggerClient.logToServer(message);
 			} catch (IOException e) {
-				ps.println("[C] Exception caught: " + e.getMessage());
-				ps.println("[C] Stack trace: " + e.getStackTrace());
+				if (events != null) {
+					events.start(EventLog.EXCEPTION, 0).putString(e.getMessage()).write();
+					return;
+				}
+				logFile.println(line().append("Exception caught: ").append(e.getMessage()));
+				logFile.println(line().append("Stack trace: ").append(e.getStackTrace()));
 			}
 	}
 
@@ -56,7 +97,9 @@ public class CoordinatorLogger {
 	 * @param port the port where the Coordinator is listening on
 	 */
 	public void startedListening(int port) {
-		logMessage("[C] started listening on port " + port);
+		if (events != null)
+			events.start(EventLog.STARTED_LISTENING, 0).putInt(port).write();
+		logMessage(line().append("started listening on port ").append(port));
 	}
 	
 	/**
@@ -65,7 +108,9 @@ public class CoordinatorLogger {
 	 * @param participantId the ID of the Participant that joined, i.e. the port where the Participant is listening on 
 	 */
 	public void joinReceived(int participantId) {
-		logMessage("[C] JOIN received from " + participantId);
+		if (events != null)
+			events.start(EventLog.JOIN_RECEIVED, 0).putInt(participantId).write();
+		logMessage(line().append("JOIN received from ").append(participantId));
 	}
 	
 	/**
@@ -75,7 +120,9 @@ public class CoordinatorLogger {
 	 * @param participantIds the list of IDs of the Participants that joined
 	 */
 	public void detailsSent(int destinationParticipantId, List<Integer> participantIds) {
-		logMessage("[C] details sent to " + destinationParticipantId + ": " + participantIds.stream().map(Object::toString).collect(Collectors.joining(", ")));
+		if (events != null)
+			events.start(EventLog.DETAILS_SENT, 0).putInt(destinationParticipantId).putInts(participantIds).write();
+		logMessage(appendAll(line().append("details sent to ").append(destinationParticipantId).append(": "), participantIds));
 	}
 	
 	/**
@@ -85,7 +132,9 @@ public class CoordinatorLogger {
 	 * @param votingOptions the list of voting options
 	 */
 	public void voteOptionsSent(int destinationParticipantId, List<String> votingOptions) {
-		logMessage("[C] vote options sent to " + destinationParticipantId + ": " + votingOptions.stream().map(Object::toString).collect(Collectors.joining(", ")));
+		if (events != null)
+			events.start(EventLog.VOTE_OPTIONS_SENT, 0).putInt(destinationParticipantId).putStrings(votingOptions).write();
+		logMessage(appendAll(line().append("vote options sent to ").append(destinationParticipantId).append(": "), votingOptions));
 	}
 	
 	/**
@@ -95,7 +144,9 @@ public class CoordinatorLogger {
 	 * @param vote the voting option sent by the Participant
 	 */
 	public void outcomeReceived(int participantId, String vote) {
-		logMessage("[C] outcome " + vote + " received from " + participantId);
+		if (events != null)
+			events.start(EventLog.OUTCOME_RECEIVED, 0).putInt(participantId).putString(vote).write();
+		logMessage(line().append("outcome ").append(vote).append(" received from ").append(participantId));
 	}
 	
 	/**
@@ -104,7 +155,9 @@ public class CoordinatorLogger {
 	 * @param otherPort the remote port number to which this socket is connected; note that this is different from the Participant ID 
 	 */
 	public void connectionAccepted(int otherPort) {
-		logMessage("[C] accepted connection from port " + otherPort);
+		if (events != null)
+			events.start(EventLog.CONNECTION_ACCEPTED, 0).putInt(otherPort).write();
+		logMessage(line().append("accepted connection from port ").append(otherPort));
 	}
 	
 	/**
@@ -114,7 +167,9 @@ public class CoordinatorLogger {
 	 * @param message the message sent
 	 */
 	public void messageSent(int destinationPort, String message) {
-		logMessage("[C] message sent to " + destinationPort + ": \"" + message + "\"");
+		if (events != null)
+			events.start(EventLog.MESSAGE_SENT, 0).putInt(destinationPort).putString(message).write();
+		logMessage(line().append("message sent to ").append(destinationPort).append(": \"").append(message).append('"'));
 	}
 	
 	/**
@@ -124,7 +179,9 @@ public class CoordinatorLogger {
 	 * @param message the message received
 	 */
 	public void messageReceived(int senderPort, String message) {
-		logMessage("[C] message received from " + senderPort + ": \"" + message + "\"");
+		if (events != null)
+			events.start(EventLog.MESSAGE_RECEIVED, 0).putInt(senderPort).putString(message).write();
+		logMessage(line().append("message received from ").append(senderPort).append(": \"").append(message).append('"'));
 	}
 	
 	/**
@@ -134,6 +191,24 @@ public class CoordinatorLogger {
 	 * @param crashedParticipantId the ID of the crashed Participant, i.e. the port where the crashed Participant was listening on
 	 */
 	public void participantCrashed(int crashedParticipantId) {
-		logMessage("[C] participant crashed: " + crashedParticipantId);
+		if (events != null)
+			events.start(EventLog.PARTICIPANT_CRASHED, 0).putInt(crashedParticipantId).write();
+		logMessage(line().append("participant crashed: ").append(crashedParticipantId));
+	}
+	
+	/**
+	 * Appends the items of a list separated by ", "
+	 */
+	private static StringBuilder appendAll(StringBuilder line, List<?> items) {
+		for (int i = 0; i < items.size(); i++) {
+			if (i > 0)
+				line.append(", ");
+			Object item = items.get(i);
+			if (item instanceof Integer)
+				line.append(((Integer) item).intValue()); // as digits, append(Object) would make a String of it first
+			else
+				line.append(item);
+		}
+		return line;
 	}
 }
@@ -0,0 +1,498 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The events of one process written as compact binary records instead of text lines, with -Dlogger.format=binary.
+ * The file starts with MAGIC, the role of the process ('C' or 'P') and its id, then each record is
+ *
+ *   type, timestamp, process, round, arguments
+ *
+ * with the type a byte and every number an unsigned LEB128 varint, so a port takes 3 bytes and an option index 1.
+ * A list is its size followed by its items, a string its length followed by its UTF-8 bytes. Votes are packed as
+ * pairs of port and option index, the option names being defined once per file by an OPTIONS record. Run as a
+ * program it turns files back into the lines the loggers write as text, keeping only the records asked for:
+ *
+ *   java EventLog [-type name,...] [-process id] [-round n] [-timestamps] file...
+ *
+ * where the type names are those of the logger methods, e.g. -type votesSent,votesReceived
+ */
+public class EventLog
+{
+	static final boolean BINARY = "binary".equals(System.getProperty("logger.format")); // -Dlogger.format=binary
+
+	private static final byte[] MAGIC = {'E', 'V', 'L', 1};
+
+	// record types
+	static final int OPTIONS = 0; // defines a table of option names for later votes, not an event
+	static final int JOIN_SENT = 1;
+	static final int DETAILS_RECEIVED = 2;
+	static final int VOTE_OPTIONS_RECEIVED = 3;
+	static final int BEGIN_ROUND = 4;
+	static final int END_ROUND = 5;
+	static final int VOTES_SENT = 6;
+	static final int VOTES_RECEIVED = 7;
+	static final int OUTCOME_DECIDED = 8;
+	static final int OUTCOME_NOTIFIED = 9;
+	static final int PARTICIPANT_CRASHED = 10;
+	static final int STARTED_LISTENING = 11;
+	static final int CONNECTION_ACCEPTED = 12;
+	static final int CONNECTION_ESTABLISHED = 13;
+	static final int MESSAGE_SENT = 14;
+	static final int MESSAGE_RECEIVED = 15;
+	static final int JOIN_RECEIVED = 16;
+	static final int DETAILS_SENT = 17;
+	static final int VOTE_OPTIONS_SENT = 18;
+	static final int OUTCOME_RECEIVED = 19;
+	static final int EXCEPTION = 20;
+
+	private static final List<String> NAMES = Arrays.asList("options", "joinSent", "detailsReceived", "voteOptionsReceived",
+			"beginRound", "endRound", "votesSent", "votesReceived", "outcomeDecided", "outcomeNotified", "participantCrashed",
+			"startedListening", "connectionAccepted", "connectionEstablished", "messageSent", "messageReceived",
+			"joinReceived", "detailsSent", "voteOptionsSent", "outcomeReceived", "exception"); // indexed by type
+
+	private final LogFile file; // written by its own thread
+	private final int process;
+	private final ThreadLocal<Event> events = ThreadLocal.withInitial(Event::new); // reused by each thread to encode its records
+	private final Map<List<String>, Integer> tables = new HashMap<>(); // the option name tables defined so far, guarded by this
+
+	/**
+	 * Creates the file and writes its header
+	 * @param name The name of the file
+	 * @param role 'C' for the Coordinator, 'P' for a Participant
+	 * @param process The id of the process
+	 * @throws IOException if the file cannot be created
+	 */
+	EventLog(String name, char role, int process) throws IOException
+	{
+		this.file = new LogFile(name);
+		this.process = process;
+		Event header = new Event();
+		for(byte b : MAGIC)
+		{
+			header.putByte(b);
+		}
+		header.putByte(role).putInt(process);
+		file.write(header.bytes, header.length);
+	}
+
+	/**
+	 * Starts a record in this thread's buffer, for the caller to add its arguments and write
+	 * @param type The type of the record
+	 * @param round The round the process is in
+	 */
+	Event start(int type, int round)
+	{
+		Event event = events.get();
+		event.length = 0;
+		return event.putByte(type).putLong(System.currentTimeMillis()).putInt(process).putInt(round);
+	}
+
+	/**
+	 * @return the number of bytes of records not yet taken by the file's writer
+	 */
+	long queuedBytes()
+	{
+		return file.queuedBytes();
+	}
+
+	/**
+	 * @return the table of a list of option names, defining it if this is the first time it is used
+	 */
+	int table(List<String> names)
+	{
+		Event event = events.get();
+		if(event.names != names) // each thread keeps asking about the same few lists
+		{
+			event.table = define(names);
+			event.names = names;
+		}
+		return event.table;
+	}
+
+	private synchronized int define(List<String> names)
+	{
+		Integer table = tables.get(names);
+		if(table == null)
+		{
+			table = tables.size() + 1; // 0 stands for option names written with the votes
+			Event definition = new Event();
+			definition.putByte(OPTIONS).putLong(System.currentTimeMillis()).putInt(process).putInt(0).putInt(table).putStrings(names);
+			file.write(definition.bytes, definition.length); // before the table is handed out, so it precedes every use
+			tables.put(new ArrayList<>(names), table);
+		}
+		return table;
+	}
+
+	/**
+	 * A record being encoded
+	 */
+	final class Event
+	{
+		private byte[] bytes = new byte[256];
+		private int length;
+		private List<String> names; // the option names last looked up by this thread
+		private int table; // and their table
+
+		Event putByte(int value)
+		{
+			if(length == bytes.length)
+			{
+				bytes = Arrays.copyOf(bytes, bytes.length * 2);
+			}
+			bytes[length++] = (byte) value;
+			return this;
+		}
+
+		Event putInt(int value)
+		{
+			return putLong(value & 0xFFFFFFFFL);
+		}
+
+		Event putLong(long value)
+		{
+			while((value & ~0x7FL) != 0)
+			{
+				putByte((int) (value & 0x7F) | 0x80);
+				value >>>= 7;
+			}
+			return putByte((int) value);
+		}
+
+		Event putString(Object value)
+		{
+			byte[] encoded = String.valueOf(value).getBytes(StandardCharsets.UTF_8); // strings are rare, options are logged as indices
+			putInt(encoded.length);
+			for(byte b : encoded)
+			{
+				putByte(b);
+			}
+			return this;
+		}
+
+		Event putInts(List<Integer> values)
+		{
+			putInt(values.size());
+			for(int i = 0; i < values.size(); i++)
+			{
+				putInt(values.get(i));
+			}
+			return this;
+		}
+
+		Event putStrings(List<String> values)
+		{
+			putInt(values.size());
+			for(int i = 0; i < values.size(); i++)
+			{
+				putString(values.get(i));
+			}
+			return this;
+		}
+
+		/**
+		 * Adds votes as pairs of port and index of an option in a table
+		 */
+		Event putVotes(int table, int[] ports, int[] options, int count)
+		{
+			putInt(table).putInt(count);
+			for(int i = 0; i < count; i++)
+			{
+				putInt(ports[i]).putInt(options[i]);
+			}
+			return this;
+		}
+
+		/**
+		 * Adds votes with their option names, for callers holding Vote objects
+		 */
+		Event putVotes(List<Vote> votes)
+		{
+			putInt(0).putInt(votes.size());
+			for(int i = 0; i < votes.size(); i++)
+			{
+				putInt(votes.get(i).getParticipantPort()).putString(votes.get(i).getVote());
+			}
+			return this;
+		}
+
+		void write()
+		{
+			file.write(bytes, length);
+		}
+	}
+
+	public static void main(String[] args)
+	{
+		Set<Integer> types = null;
+		int process = -1;
+		int round = -1;
+		boolean timestamps = false;
+		List<String> files = new ArrayList<>();
+		for(int i = 0; i < args.length; i++)
+		{
+			switch(args[i])
+			{
+				case "-type":
+					types = new HashSet<>();
+					for(String name : args[++i].split(","))
+					{
+						if(NAMES.indexOf(name) < 0)
+						{
+							System.err.println("Unknown type " + name + ", expected one of " + NAMES.subList(1, NAMES.size()));
+							return;
+						}
+						types.add(NAMES.indexOf(name));
+					}
+					break;
+				case "-process":
+					process = Integer.parseInt(args[++i]);
+					break;
+				case "-round":
+					round = Integer.parseInt(args[++i]);
+					break;
+				case "-timestamps":
+					timestamps = true;
+					break;
+				default:
+					files.add(args[i]);
+			}
+		}
+		if(files.isEmpty())
+		{
+			System.err.println("usage: java EventLog [-type name,...] [-process id] [-round n] [-timestamps] file...");
+			return;
+		}
+
+		PrintStream out = new PrintStream(new BufferedOutputStream(System.out, 64 * 1024), false);
+		for(String name : files)
+		{
+			try(InputStream in = new BufferedInputStream(new FileInputStream(name), 64 * 1024))
+			{
+				decode(in, types, process, round, timestamps, out);
+			}
+			catch(IOException e)
+			{
+				out.flush();
+				System.err.println(name + ": " + e);
+			}
+		}
+		out.flush();
+	}
+
+	/**
+	 * Prints the records of one file as text lines, reading one record at a time
+	 * @param types The types to print, or null for every type
+	 * @param process The process to print, or -1 for every process
+	 * @param round The round to print, or -1 for every round
+	 * @param timestamps true to start each line with the time of the event in milliseconds
+	 * @throws IOException if the file is not an event log or cannot be read
+	 */
+	static void decode(InputStream in, Set<Integer> types, int process, int round, boolean timestamps, PrintStream out) throws IOException
+	{
+		for(byte b : MAGIC)
+		{
+			if(in.read() != b)
+			{
+				throw new IOException("not an event log");
+			}
+		}
+		int role = in.read();
+		readInt(in); // every record names its process too
+
+		Map<Integer, List<String>> tables = new HashMap<>();
+		StringBuilder line = new StringBuilder(256);
+		int type;
+		while((type = in.read()) >= 0)
+		{
+			try
+			{
+				long timestamp = readLong(in);
+				int recordProcess = readInt(in);
+				int recordRound = readInt(in);
+				line.setLength(0);
+				if(timestamps)
+				{
+					line.append(timestamp).append(' ');
+				}
+				line.append(role == 'C' ? "[C] " : "[P" + recordProcess + "] ");
+				switch(type)
+				{
+					case OPTIONS:
+						tables.put(readInt(in), readStrings(in));
+						continue;
+					case JOIN_SENT:
+						line.append("JOIN sent to Coordinator on port ").append(readInt(in));
+						break;
+					case DETAILS_RECEIVED:
+						appendInts(line.append("received participant ports: "), in);
+						break;
+					case VOTE_OPTIONS_RECEIVED:
+						appendAll(line.append("received vote options: "), readStrings(in));
+						break;
+					case BEGIN_ROUND:
+						line.append("begin round ").append(recordRound);
+						break;
+					case END_ROUND:
+						line.append("end round ").append(recordRound);
+						break;
+					case VOTES_SENT:
+						appendVotes(line.append("votes sent to ").append(readInt(in)).append(": "), in, tables);
+						break;
+					case VOTES_RECEIVED:
+						appendVotes(line.append("votes received from ").append(readInt(in)).append(": "), in, tables);
+						break;
+					case OUTCOME_DECIDED:
+						appendInts(line.append("outcome vote decided: ").append(readString(in)).append("(based on votes of Participants "), in).append(')');
+						break;
+					case OUTCOME_NOTIFIED:
+						appendInts(line.append("outcome vote sent to Coordinator: ").append(readString(in)).append("(based on votes of Participants "), in).append(')');
+						break;
+					case PARTICIPANT_CRASHED:
+						line.append("participant crashed: ").append(readInt(in));
+						break;
+					case STARTED_LISTENING:
+						line.append("started listening on port ").append(readInt(in));
+						break;
+					case CONNECTION_ACCEPTED:
+						line.append("accepted connection from port ").append(readInt(in));
+						break;
+					case CONNECTION_ESTABLISHED:
+						line.append("connection established to port ").append(readInt(in));
+						break;
+					case MESSAGE_SENT:
+						line.append("message sent to ").append(readInt(in)).append(": \"").append(readString(in)).append('"');
+						break;
+					case MESSAGE_RECEIVED:
+						line.append("message received from ").append(readInt(in)).append(": \"").append(readString(in)).append('"');
+						break;
+					case JOIN_RECEIVED:
+						line.append("JOIN received from ").append(readInt(in));
+						break;
+					case DETAILS_SENT:
+						appendInts(line.append("details sent to ").append(readInt(in)).append(": "), in);
+						break;
+					case VOTE_OPTIONS_SENT:
+						appendAll(line.append("vote options sent to ").append(readInt(in)).append(": "), readStrings(in));
+						break;
+					case OUTCOME_RECEIVED:
+						int participant = readInt(in);
+						line.append("outcome ").append(readString(in)).append(" received from ").append(participant);
+						break;
+					case EXCEPTION:
+						line.append("Exception caught: ").append(readString(in));
+						break;
+					default:
+						throw new IOException("unknown record type " + type);
+				}
+				if((types == null || types.contains(type)) && (process == -1 || process == recordProcess) && (round == -1 || round == recordRound))
+				{
+					out.println(line);
+				}
+			}
+			catch(EOFException e)
+			{
+				break; // the process was killed part way through writing a record
+			}
+		}
+	}
+
+	private static long readLong(InputStream in) throws IOException
+	{
+		long value = 0;
+		for(int shift = 0; ; shift += 7)
+		{
+			int b = in.read();
+			if(b < 0)
+			{
+				throw new EOFException();
+			}
+			value |= (long) (b & 0x7F) << shift;
+			if((b & 0x80) == 0)
+			{
+				return value;
+			}
+		}
+	}
+
+	private static int readInt(InputStream in) throws IOException
+	{
+		return (int) readLong(in);
+	}
+
+	private static String readString(InputStream in) throws IOException
+	{
+		byte[] bytes = new byte[readInt(in)];
+		for(int i = 0; i < bytes.length; i++)
+		{
+			int b = in.read();
+			if(b < 0)
+			{
+				throw new EOFException();
+			}
+			bytes[i] = (byte) b;
+		}
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private static List<String> readStrings(InputStream in) throws IOException
+	{
+		int size = readInt(in);
+		List<String> values = new ArrayList<>(size);
+		for(int i = 0; i < size; i++)
+		{
+			values.add(readString(in));
+		}
+		return values;
+	}
+
+	private static StringBuilder appendInts(StringBuilder line, InputStream in) throws IOException
+	{
+		int size = readInt(in);
+		for(int i = 0; i < size; i++)
+		{
+			line.append(i > 0 ? ", " : "").append(readInt(in));
+		}
+		return line;
+	}
+
+	private static StringBuilder appendAll(StringBuilder line, List<String> values)
+	{
+		for(int i = 0; i < values.size(); i++)
+		{
+			line.append(i > 0 ? ", " : "").append(values.get(i));
+		}
+		return line;
+	}
+
+	/**
+	 * Appends votes in the same form as Vote.toString
+	 */
+	private static void appendVotes(StringBuilder line, InputStream in, Map<Integer, List<String>> tables) throws IOException
+	{
+		int table = readInt(in);
+		List<String> names = tables.get(table);
+		if(table != 0 && names == null)
+		{
+			throw new IOException("votes refer to undefined options " + table);
+		}
+		int count = readInt(in);
+		for(int i = 0; i < count; i++)
+		{
+			line.append(i > 0 ? ", " : "").append('<').append(readInt(in)).append(", ");
+			line.append(table == 0 ? readString(in) : names.get(readInt(in))).append('>');
+		}
+	}
+}
@@ -0,0 +1,499 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Connections between processes simulated in one JVM, each direction of a connection being a queue of bytes instead
+ * of a TCP socket. The sockets behave as the protocol expects of TCP on localhost: a refused connection throws
+ * ConnectException, reads honour the SO_TIMEOUT, closing with SO_LINGER 0 resets the connection so the other side
+ * reads what was already sent and then "Connection reset", and closing normally or shutting down output ends the
+ * stream. The processes have no backpressure, a write never blocks. Locks rather than monitors are used throughout
+ * so the simulated processes can run on virtual threads.
+ */
+public class InMemoryNetwork
+{
+	private static final int FIRST_EPHEMERAL_PORT = 100000; // above every real port so a remote port is never mistaken for a process id
+
+	private final Map<Integer, Listener> listeners = new ConcurrentHashMap<>(); // by port
+	private final Map<Integer, List<Connection>> connections = new ConcurrentHashMap<>(); // the sockets of each process, by its port
+	private final AtomicInteger ephemeralPorts = new AtomicInteger(FIRST_EPHEMERAL_PORT);
+
+	/**
+	 * @param process The port of the process that will use the transport, whose sockets crash with it
+	 * @return the transport for one simulated process
+	 */
+	Transport transport(int process)
+	{
+		return new Transport()
+		{
+			@Override
+			public Socket connect(int port) throws IOException
+			{
+				Listener listener = listeners.get(port);
+				if(listener == null || listener.isClosed())
+				{
+					throw new ConnectException("Connection refused");
+				}
+				Pipe toListener = new Pipe();
+				Pipe toDialler = new Pipe();
+				int localPort = ephemeralPorts.incrementAndGet();
+				Connection dialled = register(process, new Connection(toDialler, toListener, port, localPort));
+				listener.offer(register(port, new Connection(toListener, toDialler, localPort, port)));
+				return dialled;
+			}
+
+			@Override
+			public ServerSocket listen(int port) throws IOException
+			{
+				Listener listener = new Listener(port);
+				if(listeners.merge(port, listener, (existing, replacement) -> existing.isClosed() ? replacement : existing) != listener)
+				{
+					throw new SocketException("Address already in use");
+				}
+				return listener;
+			}
+		};
+	}
+
+	private Connection register(int process, Connection connection)
+	{
+		List<Connection> owned = connections.computeIfAbsent(process, port -> new ArrayList<>());
+		synchronized(owned)
+		{
+			owned.add(connection);
+		}
+		return connection;
+	}
+
+	/**
+	 * Crashes a process as far as its peers can tell: it stops accepting and every connection it has is reset
+	 * @param process The port of the process
+	 */
+	void crash(int process)
+	{
+		Listener listener = listeners.get(process);
+		if(listener != null)
+		{
+			listener.close();
+		}
+		List<Connection> owned = connections.getOrDefault(process, new ArrayList<>());
+		List<Connection> copy;
+		synchronized(owned)
+		{
+			copy = new ArrayList<>(owned);
+		}
+		for(Connection connection : copy)
+		{
+			connection.reset();
+		}
+	}
+
+	/**
+	 * One direction of a connection
+	 */
+	private static class Pipe
+	{
+		private final ReentrantLock lock = new ReentrantLock();
+		private final Condition readable = lock.newCondition();
+		private byte[] buffer = new byte[512];
+		private int start; // the first unread byte
+		private int end; // after the last written byte
+		private boolean ended; // the writer shut down or closed its side
+		private boolean reset; // the writer closed with SO_LINGER 0 or crashed
+		private boolean readerClosed; // the reader closed its side, anything written is discarded
+
+		void write(byte[] bytes, int offset, int length) throws IOException
+		{
+			lock.lock();
+			try
+			{
+				if(ended || reset)
+				{
+					throw new SocketException("Socket closed");
+				}
+				if(readerClosed)
+				{
+					return; // as TCP, the first writes after the other side has gone are not noticed
+				}
+				if(end + length > buffer.length)
+				{
+					int unread = end - start;
+					if(unread + length > buffer.length)
+					{
+						byte[] larger = new byte[Math.max(buffer.length * 2, unread + length)];
+						System.arraycopy(buffer, start, larger, 0, unread);
+						buffer = larger;
+					}
+					else
+					{
+						System.arraycopy(buffer, start, buffer, 0, unread);
+					}
+					start = 0;
+					end = unread;
+				}
+				System.arraycopy(bytes, offset, buffer, end, length);
+				end += length;
+				readable.signal();
+			}
+			finally
+			{
+				lock.unlock();
+			}
+		}
+
+		/**
+		 * @param timeout The longest to wait for something to read in milliseconds, 0 to wait as long as it takes
+		 */
+		int read(byte[] bytes, int offset, int length, int timeout) throws IOException
+		{
+			lock.lock();
+			try
+			{
+				long nanos = TimeUnit.MILLISECONDS.toNanos(timeout);
+				while(start == end && !ended && !reset && !readerClosed)
+				{
+					if(timeout == 0)
+					{
+						readable.await();
+					}
+					else if((nanos = readable.awaitNanos(nanos)) <= 0)
+					{
+						throw new SocketTimeoutException("Read timed out");
+					}
+				}
+				if(readerClosed)
+				{
+					throw new SocketException("Socket closed");
+				}
+				if(start == end)
+				{
+					if(reset)
+					{
+						throw new SocketException("Connection reset");
+					}
+					return -1;
+				}
+				int count = Math.min(length, end - start);
+				System.arraycopy(buffer, start, bytes, offset, count);
+				start += count;
+				return count;
+			}
+			catch(InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				throw new SocketException("Interrupted");
+			}
+			finally
+			{
+				lock.unlock();
+			}
+		}
+
+		/**
+		 * Ends the stream, normally or by resetting the connection
+		 */
+		void end(boolean reset)
+		{
+			lock.lock();
+			try
+			{
+				this.ended = true;
+				this.reset |= reset;
+				readable.signalAll();
+			}
+			finally
+			{
+				lock.unlock();
+			}
+		}
+
+		void closeReader()
+		{
+			lock.lock();
+			try
+			{
+				readerClosed = true;
+				buffer = new byte[0];
+				start = end = 0;
+				readable.signalAll();
+			}
+			finally
+			{
+				lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * A socket over a pair of pipes
+	 */
+	private static class Connection extends Socket
+	{
+		private final Pipe in;
+		private final Pipe out;
+		private final int port; // the port of the other side
+		private final int localPort;
+		private final InputStream input = new InputStream()
+		{
+			private final byte[] one = new byte[1];
+
+			@Override
+			public int read() throws IOException
+			{
+				return read(one, 0, 1) == -1 ? -1 : one[0] & 0xFF;
+			}
+
+			@Override
+			public int read(byte[] bytes, int offset, int length) throws IOException
+			{
+				return length == 0 ? 0 : in.read(bytes, offset, length, timeout);
+			}
+
+			@Override
+			public void close() throws IOException
+			{
+				Connection.this.close();
+			}
+		};
+		private final OutputStream output = new OutputStream()
+		{
+			@Override
+			public void write(int b) throws IOException
+			{
+				write(new byte[]{(byte) b}, 0, 1);
+			}
+
+			@Override
+			public void write(byte[] bytes, int offset, int length) throws IOException
+			{
+				out.write(bytes, offset, length);
+			}
+
+			@Override
+			public void close() throws IOException
+			{
+				Connection.this.close();
+			}
+		};
+		private volatile int timeout; // SO_TIMEOUT
+		private volatile int linger = -1; // SO_LINGER, -1 when off
+		private volatile boolean closed;
+
+		Connection(Pipe in, Pipe out, int port, int localPort)
+		{
+			this.in = in;
+			this.out = out;
+			this.port = port;
+			this.localPort = localPort;
+		}
+
+		@Override
+		public InputStream getInputStream()
+		{
+			return input;
+		}
+
+		@Override
+		public OutputStream getOutputStream()
+		{
+			return output;
+		}
+
+		@Override
+		public int getPort()
+		{
+			return port;
+		}
+
+		@Override
+		public int getLocalPort()
+		{
+			return localPort;
+		}
+
+		@Override
+		public void setSoTimeout(int timeout)
+		{
+			this.timeout = timeout;
+		}
+
+		@Override
+		public int getSoTimeout()
+		{
+			return timeout;
+		}
+
+		@Override
+		public void setSoLinger(boolean on, int linger)
+		{
+			this.linger = on ? linger : -1;
+		}
+
+		@Override
+		public int getSoLinger()
+		{
+			return linger;
+		}
+
+		@Override
+		public void setTcpNoDelay(boolean on)
+		{
+			// nothing is delayed in memory
+		}
+
+		@Override
+		public boolean isConnected()
+		{
+			return true;
+		}
+
+		@Override
+		public boolean isClosed()
+		{
+			return closed;
+		}
+
+		@Override
+		public void shutdownOutput()
+		{
+			out.end(false);
+		}
+
+		@Override
+		public void close()
+		{
+			if(closed)
+			{
+				return;
+			}
+			closed = true;
+			in.closeReader();
+			out.end(linger == 0);
+		}
+
+		/**
+		 * Closes the connection as a crashed process would
+		 */
+		void reset()
+		{
+			linger = 0;
+			close();
+		}
+
+		@Override
+		public String toString()
+		{
+			return "InMemoryNetwork.Connection[port=" + port + ",localport=" + localPort + "]";
+		}
+	}
+
+	/**
+	 * A server socket that hands out the connections made to its port
+	 */
+	private static class Listener extends ServerSocket
+	{
+		private final int port;
+		private final ArrayDeque<Connection> pending = new ArrayDeque<>();
+		private final ReentrantLock lock = new ReentrantLock();
+		private final Condition connected = lock.newCondition();
+		private volatile boolean closed;
+
+		Listener(int port) throws IOException
+		{
+			this.port = port;
+		}
+
+		void offer(Connection connection) throws IOException
+		{
+			lock.lock();
+			try
+			{
+				if(closed)
+				{
+					throw new ConnectException("Connection refused");
+				}
+				pending.add(connection);
+				connected.signal();
+			}
+			finally
+			{
+				lock.unlock();
+			}
+		}
+
+		@Override
+		public Socket accept() throws IOException
+		{
+			lock.lock();
+			try
+			{
+				while(pending.isEmpty() && !closed)
+				{
+					connected.awaitUninterruptibly();
+				}
+				if(closed)
+				{
+					throw new SocketException("Socket closed");
+				}
+				return pending.poll();
+			}
+			finally
+			{
+				lock.unlock();
+			}
+		}
+
+		@Override
+		public int getLocalPort()
+		{
+			return port;
+		}
+
+		@Override
+		public boolean isClosed()
+		{
+			return closed;
+		}
+
+		@Override
+		public void close()
+		{
+			lock.lock();
+			try
+			{
+				closed = true;
+				for(Connection connection : pending) // connections never accepted are refused
+				{
+					connection.reset();
+				}
+				pending.clear();
+				connected.signalAll();
+			}
+			finally
+			{
+				lock.unlock();
+			}
+		}
+
+		@Override
+		public String toString()
+		{
+			return "InMemoryNetwork.Listener[port=" + port + "]";
+		}
+	}
+}
@@ -0,0 +1,355 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded ring of newline terminated lines, encoded as UTF-8 as they are added so a line can be built in a reused
+ * StringBuilder and handed over without creating a String. Any number of threads may add lines, one thread takes them.
+ * Raw bytes can be added too, for a taker that writes a stream and so does not need whole lines.
+ *
+ * Adding takes no lock. An adder claims room for its record by moving the tail on with a compare and set, encodes into
+ * that room while other adders encode into theirs, then publishes the record by writing its length in front of it. The
+ * taker takes records in order up to the first one not yet published, and zeroes the room it took so a length read
+ * past the last record published is always 0. Records start on 4 byte boundaries so a length never wraps.
+ */
+public class LineBuffer
+{
+	private static final VarHandle LENGTH = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.nativeOrder());
+	private static final int HEADER = 4; // the length in front of each record
+
+	private final ByteBuffer ring; // direct, so the lengths are aligned for volatile access
+	private final ByteBuffer reader; // the taker's view of the ring
+	private final AtomicLong tail = new AtomicLong(); // bytes claimed by adders
+	private volatile long head; // bytes taken, only moved by the taker
+	private int offset; // bytes of the record at the head already taken by a take that split it
+	private volatile boolean takerWaiting; // in awaitLine, so an adder publishing a record has to wake it
+	private volatile boolean addersWaiting; // in awaitTake, so the taker has to wake them once it has taken something
+
+	/**
+	 * @param capacity The most bytes held at once, including 4 to 7 bytes of framing per line
+	 */
+	LineBuffer(int capacity)
+	{
+		ring = ByteBuffer.allocateDirect(align(capacity)).order(ByteOrder.nativeOrder());
+		reader = ring.duplicate();
+	}
+
+	/**
+	 * Adds a line, prefixed with a timestamp and a space unless the timestamp is negative
+	 * @return false if there was no room for the line, which is not added
+	 */
+	boolean add(long timestamp, CharSequence line)
+	{
+		int length = (timestamp < 0 ? 0 : digits(timestamp) + 1) + encodedLength(line) + 1;
+		long record = claim(length);
+		if(record < 0)
+		{
+			return false;
+		}
+		long at = record + HEADER;
+		if(timestamp >= 0)
+		{
+			for(long unit = pow10(digits(timestamp) - 1); unit > 0; unit /= 10)
+			{
+				put(at++, (byte) ('0' + (timestamp / unit) % 10));
+			}
+			put(at++, (byte) ' ');
+		}
+		at = encode(line, at);
+		put(at, (byte) '\n');
+		publish(record, length);
+		return true;
+	}
+
+	/**
+	 * Adds bytes as they are, without a newline
+	 * @return false if there was no room for them, in which case none are added
+	 */
+	boolean add(byte[] bytes, int length)
+	{
+		if(length == 0)
+		{
+			return true;
+		}
+		long record = claim(length);
+		if(record < 0)
+		{
+			return false;
+		}
+		int from = index(record + HEADER);
+		int first = Math.min(length, ring.capacity() - from);
+		ring.put(from, bytes, 0, first);
+		ring.put(0, bytes, first, length - first);
+		publish(record, length);
+		return true;
+	}
+
+	/**
+	 * Claims room for a record of the given length
+	 * @return the position of the record, or -1 if there is no room for it
+	 */
+	private long claim(int length)
+	{
+		long size = align(HEADER + (long) length);
+		while(true)
+		{
+			long record = tail.get();
+			if(record + size - head > ring.capacity())
+			{
+				return -1;
+			}
+			if(tail.compareAndSet(record, record + size))
+			{
+				return record;
+			}
+		}
+	}
+
+	private void publish(long record, int length)
+	{
+		LENGTH.setVolatile(ring, index(record), length);
+		if(takerWaiting)
+		{
+			synchronized(this)
+			{
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Moves whole lines into a buffer, as many as fit
+	 * @param out The buffer to fill
+	 * @param split true to fill the buffer with the start of the next line if not even that fits whole
+	 * @return the number of bytes moved
+	 */
+	int take(ByteBuffer out, boolean split)
+	{
+		long record = head;
+		int moved = 0;
+		while(out.hasRemaining())
+		{
+			int length = (int) LENGTH.getVolatile(ring, index(record));
+			if(length == 0) // not published yet
+			{
+				break;
+			}
+			int left = length - offset;
+			if(left > out.remaining())
+			{
+				if(moved == 0 && split)
+				{
+					int count = out.remaining();
+					copy(record + HEADER + offset, count, out);
+					offset += count;
+					moved = count;
+				}
+				break;
+			}
+			copy(record + HEADER + offset, left, out);
+			moved += left;
+			offset = 0;
+			record = free(record, length);
+		}
+		if(record != head)
+		{
+			moveHead(record);
+		}
+		return moved;
+	}
+
+	/**
+	 * Drops the rest of a line a take split, so it is never taken
+	 */
+	void skip()
+	{
+		if(offset == 0)
+		{
+			return;
+		}
+		offset = 0;
+		moveHead(free(head, (int) LENGTH.getVolatile(ring, index(head))));
+	}
+
+	/**
+	 * Zeroes a record taken, before its room is handed back to the adders
+	 * @return the position of the record after it
+	 */
+	private long free(long record, int length)
+	{
+		long size = align(HEADER + (long) length);
+		for(long i = 0; i < size; i += HEADER)
+		{
+			ring.putInt(index(record + i), 0);
+		}
+		return record + size;
+	}
+
+	private void moveHead(long record)
+	{
+		head = record;
+		if(addersWaiting)
+		{
+			synchronized(this)
+			{
+				addersWaiting = false;
+				notifyAll();
+			}
+		}
+	}
+
+	private void copy(long from, int count, ByteBuffer out)
+	{
+		int start = index(from);
+		int first = Math.min(count, ring.capacity() - start);
+		reader.clear();
+		reader.position(start).limit(start + first);
+		out.put(reader);
+		reader.clear();
+		reader.limit(count - first);
+		out.put(reader);
+	}
+
+	/**
+	 * @return true if nothing has been added that has not been taken, including lines still being added
+	 */
+	boolean isEmpty()
+	{
+		return tail.get() == head;
+	}
+
+	/**
+	 * @return the number of bytes held, framing included
+	 */
+	long size()
+	{
+		return tail.get() - head;
+	}
+
+	/**
+	 * Waits until there is a line to take
+	 */
+	synchronized void awaitLine() throws InterruptedException
+	{
+		takerWaiting = true;
+		try
+		{
+			while((int) LENGTH.getVolatile(ring, index(head)) == 0)
+			{
+				wait();
+			}
+		}
+		finally
+		{
+			takerWaiting = false;
+		}
+	}
+
+	/**
+	 * Waits until some lines have been taken or a timeout passes
+	 */
+	synchronized void awaitTake(long millis) throws InterruptedException
+	{
+		addersWaiting = true;
+		if(!isEmpty())
+		{
+			wait(millis);
+		}
+	}
+
+	private int index(long position)
+	{
+		return (int) (position % ring.capacity());
+	}
+
+	private static int align(int size)
+	{
+		return (size + HEADER - 1) & -HEADER;
+	}
+
+	private static long align(long size)
+	{
+		return (size + HEADER - 1) & -HEADER;
+	}
+
+	/**
+	 * @return the number of bytes a line takes in UTF-8
+	 */
+	private static int encodedLength(CharSequence line)
+	{
+		int length = 0;
+		for(int i = 0; i < line.length(); i++)
+		{
+			char c = line.charAt(i);
+			length += c < 0x80 ? 1 : c < 0x800 || Character.isSurrogate(c) ? 2 : 3; // each half of a surrogate pair is 2 of its 4 bytes
+		}
+		return length;
+	}
+
+	/**
+	 * @return the position after the line
+	 */
+	private long encode(CharSequence line, long at)
+	{
+		for(int i = 0; i < line.length(); i++)
+		{
+			char c = line.charAt(i);
+			if(c < 0x80)
+			{
+				put(at++, (byte) c);
+			}
+			else if(c < 0x800)
+			{
+				put(at++, (byte) (0xC0 | c >> 6));
+				put(at++, (byte) (0x80 | c & 0x3F));
+			}
+			else if(Character.isHighSurrogate(c) && i + 1 < line.length() && Character.isLowSurrogate(line.charAt(i + 1)))
+			{
+				int code = Character.toCodePoint(c, line.charAt(++i));
+				put(at++, (byte) (0xF0 | code >> 18));
+				put(at++, (byte) (0x80 | code >> 12 & 0x3F));
+				put(at++, (byte) (0x80 | code >> 6 & 0x3F));
+				put(at++, (byte) (0x80 | code & 0x3F));
+			}
+			else if(Character.isSurrogate(c)) // unpaired, replaced keeping the length counted for it
+			{
+				put(at++, (byte) '?');
+				put(at++, (byte) '?');
+			}
+			else
+			{
+				put(at++, (byte) (0xE0 | c >> 12));
+				put(at++, (byte) (0x80 | c >> 6 & 0x3F));
+				put(at++, (byte) (0x80 | c & 0x3F));
+			}
+		}
+		return at;
+	}
+
+	private void put(long position, byte b)
+	{
+		ring.put(index(position), b);
+	}
+
+	private static int digits(long value)
+	{
+		int digits = 1;
+		for(; value >= 10; value /= 10)
+		{
+			digits++;
+		}
+		return digits;
+	}
+
+	private static long pow10(int exponent)
+	{
+		long value = 1;
+		for(int i = 0; i < exponent; i++)
+		{
+			value *= 10;
+		}
+		return value;
+	}
+}
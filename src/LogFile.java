@@ -0,0 +1,165 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A log file written by its own thread so logging never holds up the threads running the protocol. println only
+ * copies the line into a LineBuffer, the writer moves the lines into a buffer and writes it to the file whenever the
+ * buffer fills, a batch of lines has been queued or FLUSH_INTERVAL has passed, and once more when the process exits.
+ */
+public class LogFile
+{
+	static final long FLUSH_INTERVAL = TimeUnit.MILLISECONDS.toNanos(100); // the longest a line waits before being written
+	static final int BATCH = 256; // lines queued before the writer is woken early
+
+	private final FileChannel file;
+	private final LineBuffer lines = new LineBuffer(1 << 20); // lines waiting for the writer
+	private final AtomicInteger queued = new AtomicInteger(); // the number of lines added since the writer last woke
+	private final ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024); // lines encoded but not yet written
+	private final Thread writer;
+	private volatile boolean closed;
+
+	/**
+	 * Creates the file, replacing any file with the same name, and starts its writer
+	 * @param name The name of the file
+	 * @throws IOException if the file cannot be created
+	 */
+	LogFile(String name) throws IOException
+	{
+		file = FileChannel.open(Paths.get(name), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		writer = new Thread(this::write, "LogFile " + name);
+		writer.setDaemon(true); // the shutdown hook writes what is left
+		writer.start();
+		Runtime.getRuntime().addShutdownHook(new Thread(this::close));
+	}
+
+	/**
+	 * Queues a line to be written, the line is copied so a StringBuilder can be reused straight away
+	 */
+	void println(CharSequence line)
+	{
+		while(!lines.add(-1, line)) // full, which only a burst far larger than a batch can do
+		{
+			if(!awaitRoom())
+			{
+				return;
+			}
+		}
+		queued();
+	}
+
+	/**
+	 * Queues bytes to be written as they are, they are copied so the array can be reused straight away
+	 */
+	void write(byte[] bytes, int length)
+	{
+		while(!lines.add(bytes, length))
+		{
+			if(!awaitRoom())
+			{
+				return;
+			}
+		}
+		queued();
+	}
+
+	/**
+	 * Wakes the writer and waits a little for it to make room
+	 * @return false if there is nothing for the writer to take, so what was being added is larger than the whole buffer and can never be
+	 */
+	private boolean awaitRoom()
+	{
+		if(lines.isEmpty())
+		{
+			return false;
+		}
+		LockSupport.unpark(writer);
+		try
+		{
+			lines.awaitTake(10);
+		}
+		catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return the number of bytes queued and not yet taken by the writer
+	 */
+	long queuedBytes()
+	{
+		return lines.size();
+	}
+
+	private void queued()
+	{
+		if(queued.incrementAndGet() == BATCH)
+		{
+			LockSupport.unpark(writer);
+		}
+	}
+
+	/**
+	 * Writes the queued lines until the file is closed
+	 */
+	private void write()
+	{
+		try
+		{
+			while(true)
+			{
+				boolean closing = closed; // read before draining so nothing queued before close is missed
+				queued.set(0);
+				while(lines.take(buffer, true) > 0) // a line longer than the buffer is written in pieces
+				{
+					writeBuffer();
+				}
+				if(closing)
+				{
+					break;
+				}
+				LockSupport.parkNanos(this, FLUSH_INTERVAL);
+			}
+			file.close();
+		}
+		catch(IOException e)
+		{
+			e.printStackTrace();
+		}
+	}
+
+	private void writeBuffer() throws IOException
+	{
+		buffer.flip();
+		while(buffer.hasRemaining())
+		{
+			file.write(buffer);
+		}
+		buffer.clear();
+	}
+
+	/**
+	 * Writes everything queued and closes the file, waiting for the writer to finish
+	 */
+	void close()
+	{
+		closed = true;
+		LockSupport.unpark(writer);
+		try
+		{
+			writer.join();
+		}
+		catch(InterruptedException e)
+		{
+			e.printStackTrace();
+		}
+	}
+}
@@ -0,0 +1,262 @@
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.InstanceNotFoundException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+/**
+ * The counters, gauges and latency histograms of a Coordinator or Participant, exposed over JMX as the MBean
+ * dsn:type=Coordinator,port=<port> or dsn:type=Participant,port=<port> for jconsole or any other JMX client. Every
+ * count is a LongAdder, so recording never takes a lock and threads recording the same metric do not contend on one
+ * cache line; the cells are only summed when an attribute is read. Gauges are read only when their attribute is.
+ *
+ * Messages and bytes are counted by message type as they are sent and received, in either protocol. A frame counts its
+ * length prefix, a text message a byte per character and its newline.
+ */
+public class Metrics implements DynamicMBean
+{
+	private final String type; // Coordinator or Participant
+	private final LongAdder[] sent = adders(WireProtocol.TYPES); // messages sent by type
+	private final LongAdder[] received = adders(WireProtocol.TYPES); // messages received by type
+	private final LongAdder bytesSent = new LongAdder();
+	private final LongAdder bytesReceived = new LongAdder();
+	private final LongAdder peersSuspected = new LongAdder(); // peers that went away before they were expected to
+	private final Map<String, LongSupplier> attributes = new ConcurrentSkipListMap<>(); // every attribute by name, in order
+
+	/**
+	 * Creates the metrics of a process and registers them, replacing any registered for the same process before
+	 * @param type Coordinator or Participant
+	 * @param port The port the process is listening on
+	 */
+	Metrics(String type, int port)
+	{
+		this.type = type;
+		for(byte message = 1; message < WireProtocol.TYPES; message++)
+		{
+			attributes.put("MessagesSent." + WireProtocol.nameOf(message), sent[message]::sum);
+			attributes.put("MessagesReceived." + WireProtocol.nameOf(message), received[message]::sum);
+		}
+		attributes.put("BytesSent", bytesSent::sum);
+		attributes.put("BytesReceived", bytesReceived::sum);
+		attributes.put("PeersSuspected", peersSuspected::sum);
+		try
+		{
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName("dsn:type=" + type + ",port=" + port);
+			try
+			{
+				server.unregisterMBean(name); // a process simulated again in the same JVM
+			}
+			catch(InstanceNotFoundException e)
+			{
+				// the usual case
+			}
+			server.registerMBean(this, name);
+		}
+		catch(Exception e)
+		{
+			e.printStackTrace();
+		}
+	}
+
+	private static LongAdder[] adders(int count)
+	{
+		LongAdder[] adders = new LongAdder[count];
+		for(int i = 0; i < count; i++)
+		{
+			adders[i] = new LongAdder();
+		}
+		return adders;
+	}
+
+	/**
+	 * @param message The message type
+	 * @param bytes The size of the message on the wire
+	 */
+	void sent(byte message, int bytes)
+	{
+		if(message > 0 && message < WireProtocol.TYPES)
+		{
+			sent[message].increment();
+			bytesSent.add(bytes);
+		}
+	}
+
+	/**
+	 * @param message The message type
+	 * @param bytes The size of the message on the wire
+	 */
+	void received(byte message, int bytes)
+	{
+		if(message > 0 && message < WireProtocol.TYPES) // one that is not a message type is rejected by the caller
+		{
+			received[message].increment();
+			bytesReceived.add(bytes);
+		}
+	}
+
+	void peerSuspected()
+	{
+		peersSuspected.increment();
+	}
+
+	/**
+	 * Adds a gauge read whenever its attribute is
+	 */
+	void gauge(String name, LongSupplier value)
+	{
+		attributes.put(name, value);
+	}
+
+	/**
+	 * Adds a gauge of the depth of a queue, the queue's owner increments it as it adds and decrements it as it takes
+	 */
+	LongAdder queue(String name)
+	{
+		LongAdder depth = new LongAdder();
+		attributes.put(name, depth::sum);
+		return depth;
+	}
+
+	/**
+	 * Adds a histogram, exposed as its count, mean, p50, p90, p99 and max in microseconds
+	 */
+	Histogram histogram(String name)
+	{
+		Histogram histogram = new Histogram();
+		attributes.put(name + ".count", histogram::count);
+		attributes.put(name + ".meanMicros", histogram::mean);
+		attributes.put(name + ".p50Micros", () -> histogram.percentile(0.5));
+		attributes.put(name + ".p90Micros", () -> histogram.percentile(0.9));
+		attributes.put(name + ".p99Micros", () -> histogram.percentile(0.99));
+		attributes.put(name + ".maxMicros", histogram::max);
+		return histogram;
+	}
+
+	/**
+	 * Durations counted in power of two buckets of microseconds, so a percentile is accurate to within a factor of two
+	 */
+	static class Histogram
+	{
+		private static final int BUCKETS = 40; // bucket b counts durations below 2^b microseconds, the last everything longer
+
+		private final LongAdder[] buckets = adders(BUCKETS);
+		private final LongAdder total = new LongAdder(); // of every duration, in microseconds
+		private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+		/**
+		 * @param nanos The duration to record in nanoseconds
+		 */
+		void record(long nanos)
+		{
+			long micros = Math.max(0, nanos / 1000);
+			buckets[Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros))].increment();
+			total.add(micros);
+			max.accumulate(micros);
+		}
+
+		long count()
+		{
+			long count = 0;
+			for(LongAdder bucket : buckets)
+			{
+				count += bucket.sum();
+			}
+			return count;
+		}
+
+		long mean()
+		{
+			long count = count();
+			return count == 0 ? 0 : total.sum() / count;
+		}
+
+		long max()
+		{
+			return max.get();
+		}
+
+		/**
+		 * @return the upper bound of the bucket holding the percentile, or the longest duration if that is lower
+		 */
+		long percentile(double fraction)
+		{
+			long rank = (long) Math.ceil(fraction * count());
+			long seen = 0;
+			for(int b = 0; b < BUCKETS; b++)
+			{
+				seen += buckets[b].sum();
+				if(seen >= rank && seen > 0)
+				{
+					return Math.min((1L << b) - 1, max.get());
+				}
+			}
+			return max.get();
+		}
+	}
+
+	@Override
+	public Object getAttribute(String name) throws AttributeNotFoundException
+	{
+		LongSupplier value = attributes.get(name);
+		if(value == null)
+		{
+			throw new AttributeNotFoundException(name);
+		}
+		return value.getAsLong();
+	}
+
+	@Override
+	public AttributeList getAttributes(String[] names)
+	{
+		AttributeList list = new AttributeList();
+		for(String name : names)
+		{
+			LongSupplier value = attributes.get(name);
+			if(value != null)
+			{
+				list.add(new Attribute(name, value.getAsLong()));
+			}
+		}
+		return list;
+	}
+
+	@Override
+	public void setAttribute(Attribute attribute) throws AttributeNotFoundException
+	{
+		throw new AttributeNotFoundException(attribute.getName() + " is read only");
+	}
+
+	@Override
+	public AttributeList setAttributes(AttributeList attributes)
+	{
+		return new AttributeList(); // every attribute is read only
+	}
+
+	@Override
+	public Object invoke(String action, Object[] params, String[] signature) throws ReflectionException
+	{
+		throw new ReflectionException(new NoSuchMethodException(action), "No operation " + action); // there are none
+	}
+
+	@Override
+	public MBeanInfo getMBeanInfo()
+	{
+		MBeanAttributeInfo[] infos = attributes.keySet().stream()
+		                                       .map(name -> new MBeanAttributeInfo(name, "long", name, true, false, false))
+		                                       .toArray(MBeanAttributeInfo[]::new);
+		return new MBeanInfo(getClass().getName(), "Metrics of the " + type, infos, null, null, null);
+	}
+}
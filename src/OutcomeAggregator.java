@@ -0,0 +1,166 @@
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Collects the OUTCOME of every participant of a single election as the connections to them report it, concurrently and
+ * without a lock: each report is an insert into concurrent maps and a few atomic updates, then the thread that made the
+ * last update needed sees the election decided. The election is decided once every participant still live has reported
+ * the same outcome, or once a quorum of them has (-Dcoordinator.quorum=<n>), whichever comes first. Participants
+ * reporting different outcomes are reported as they diverge.
+ */
+public class OutcomeAggregator
+{
+	private final int quorum; // the reports of one outcome that decide the election, 0 to wait for every live participant
+	private final Map<Integer, Report> reports = new ConcurrentHashMap<>(); // the report of each participant that has sent one
+	private final Map<String, AtomicInteger> tallies = new ConcurrentHashMap<>(); // the reports of each outcome, never removed
+	private final AtomicInteger reported = new AtomicInteger(); // the size of reports, updated after tallies
+	private final AtomicInteger live = new AtomicInteger(); // the participants that have not been lost without reporting
+	private final AtomicReference<String> decision = new AtomicReference<>(); // the outcome decided, set once
+	private final AtomicBoolean diverged = new AtomicBoolean(); // every live participant has reported but they disagree
+	private volatile long start; // System.nanoTime() when the options were sent
+	private volatile long decisionNanos; // from the options being sent to the election being decided
+
+	/**
+	 * The outcome a participant reported and the participants whose votes it was based on
+	 */
+	private static class Report
+	{
+		final String vote;
+		final List<Integer> voters;
+
+		Report(String vote, List<Integer> voters)
+		{
+			this.vote = vote;
+			this.voters = voters;
+		}
+	}
+
+	/**
+	 * @param quorum The reports of one outcome that decide the election, 0 to wait for every live participant
+	 */
+	OutcomeAggregator(int quorum)
+	{
+		this.quorum = quorum;
+	}
+
+	/**
+	 * To be called as the options are sent, before any outcome can be reported
+	 * @param participants The number of participants that joined, any lost before now have already been uncounted
+	 * @param start System.nanoTime() when the options were sent
+	 */
+	void start(int participants, long start)
+	{
+		this.start = start;
+		live.addAndGet(participants);
+	}
+
+	/**
+	 * @param port The participant reporting
+	 * @param vote The outcome it decided
+	 * @param voters The participants whose votes the outcome was based on
+	 * @return false if the participant had already reported and the report is ignored
+	 */
+	boolean outcomeReceived(int port, String vote, List<Integer> voters)
+	{
+		Report report = new Report(vote, voters);
+		if(reports.putIfAbsent(port, report) != null)
+		{
+			return false;
+		}
+		AtomicInteger tally = tallies.get(vote);
+		if(tally == null)
+		{
+			AtomicInteger first = tallies.putIfAbsent(vote, tally = new AtomicInteger());
+			if(first != null)
+			{
+				tally = first;
+			}
+			else if(tallies.size() > 1)
+			{
+				reportDivergence(port, report);
+			}
+		}
+		int count = tally.incrementAndGet();
+		reported.incrementAndGet();
+		if(quorum > 0 && count >= quorum)
+		{
+			decide(vote, count);
+		}
+		checkUnanimous();
+		return true;
+	}
+
+	/**
+	 * To be called when a participant crashes before reporting, the election stops waiting for it
+	 */
+	void participantLost(int port)
+	{
+		if(reports.containsKey(port))
+		{
+			return;
+		}
+		live.decrementAndGet();
+		checkUnanimous();
+	}
+
+	/**
+	 * Decides the election if every live participant has reported and they all agree. A report counts itself and a loss
+	 * uncounts itself before either count is read, so whichever of the last report and the last loss comes second sees
+	 * both.
+	 */
+	private void checkUnanimous()
+	{
+		int count = reported.get();
+		if(count < live.get() || decision.get() != null)
+		{
+			return;
+		}
+		if(tallies.size() == 1)
+		{
+			decide(tallies.keySet().iterator().next(), count);
+		}
+		else if(count > 0 && diverged.compareAndSet(false, true))
+		{
+			System.out.println("Coordinator > Outcomes diverged, every participant has reported: " + tallies);
+		}
+	}
+
+	private void decide(String vote, int agreed)
+	{
+		long elapsed = System.nanoTime() - start;
+		if(decision.compareAndSet(null, vote))
+		{
+			decisionNanos = elapsed;
+			System.out.println("Coordinator > Outcome: " + vote + ", agreed by " + agreed + " of " + live.get() + " live participants in "
+			                   + elapsed / 1_000_000 + "ms");
+		}
+	}
+
+	/**
+	 * Prints the first report found that disagrees with a report of an outcome no other participant has reported
+	 */
+	private void reportDivergence(int port, Report report)
+	{
+		for(Map.Entry<Integer, Report> other : reports.entrySet())
+		{
+			if(!other.getValue().vote.equals(report.vote))
+			{
+				System.out.println("Coordinator > Participant " + port + " decided " + report.vote + " from " + report.voters + " but participant "
+				                   + other.getKey() + " decided " + other.getValue().vote + " from " + other.getValue().voters);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * @return the microseconds from the options being sent to the election being decided, 0 until it is
+	 */
+	long decisionMicros()
+	{
+		return decisionNanos / 1000;
+	}
+}
@@ -1,11 +1,24 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.net.ConnectException;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.LongAdder;
 
 public class Participant extends Thread
 {
@@ -13,30 +26,58 @@ public class Participant extends Thread
 	private final int loggerPort; // logger server is listening on
 	private final int participantPort; // this participant is listening on
 	private final int timeout; // timeout in milliseconds <- used when waiting for a message from another process to decide whether that process has failed.
+	private final boolean sharedConnections = "shared".equals(System.getProperty("participant.connections")); // -Dparticipant.connections=shared uses one connection per pair of participants, the lower port dials the higher
+	private final boolean gossip = "gossip".equals(System.getProperty("participant.dissemination")); // -Dparticipant.dissemination=gossip exchanges votes with a few random peers per round instead of all of them
+	private final int fanout = Integer.getInteger("gossip.fanout", 3); // the number of peers each gossip round is sent to
+	private final int heartbeatInterval; // a connection idle this many milliseconds is sent a HEARTBEAT, 0 if heartbeats are off
+	private final int heartbeatSilence; // a peer unheard for this many milliseconds is taken to have crashed, 0 if heartbeats are off
+	private final ByteBuffer heartbeat = WireProtocol.encodeHeartbeat(); // not consumed, so every connection can send it
 
-	private ParticipantLogger logger;
+	private final Transport transport; // opens the connections to the coordinator and the other participants
+	private final ParticipantLogger logger;
+	private final Metrics metrics; // exposed over JMX
+	private final Metrics.Histogram roundDurations; // from beginRound to endRound, every ballot's and gossip rounds too
+	private final LongAdder queuedMessages; // round messages handed to the writers and not yet taken
 
 	private Socket coordinatorSocket;
 	private PrintWriter coordinatorOut; // send messages to coordinator
 	private BufferedReader coordinatorIn; // receive messages from coordinator
+	private OutputStream coordinatorRawOut; // send binary frames to the coordinator
+	private DataInputStream coordinatorData; // receive binary frames from the coordinator, which answers in the protocol it is spoken to in
+	private ByteBuffer coordinatorFrame; // reused for every frame from the coordinator
+	private volatile long lastCoordinatorWrite; // System.currentTimeMillis() when anything was last sent to the coordinator
 
 	private List<Integer> participants = new ArrayList<>(); // list of other participants
-	private List<String> options = new ArrayList<>(); // list of vote options
 
-	private String vote; // vote of this participant
-	private final Map<Integer, String> votes = new HashMap<>(); // map of participants to votes
-	private Map<Integer, String> newVotes = new HashMap<>(); // map of the votes that we're received last round
-	private String winningVote;
+	private Ballot election; // the single election of the coursework protocol, null when the coordinator runs numbered ballots
+	private final Map<Integer, Ballot> ballots = new HashMap<>(); // the numbered ballots in progress, by id
+	private int lastBallot; // the highest ballot id the coordinator has sent options for
+	private boolean multipleBallots; // the coordinator is running numbered ballots rather than a single election
 
 	private HashMap<ParticipantListener, Socket> participantReadSockets = new HashMap<>(); // map of the ParticipantListeners to the sockets they are using
 	private HashMap<ParticipantWriter, Socket> participantWriteSockets = new HashMap<>(); // map of the ParticipantWriters to the sockets they are using
+	private final List<RoundMessage> sentMessages = new ArrayList<>(); // every round message so far, replayed to writers that start late
 
-	private ServerSocket serverSocket; // the socket that this participant is listening on
+	private volatile ServerSocket serverSocket; // the socket that this participant is listening on, closed once no more peers can be waited for
 
 	private int maxRounds; // the maximum number of rounds to run
-	private int round = 1; // the round this participant is currently on
+	private final CountDownLatch dialled = new CountDownLatch(1); // released once this participant has dialled every peer
+	private final CountDownLatch accepted = new CountDownLatch(1); // released once every peer that dials this participant has connected
+
+	private volatile int gossipRound; // the gossip round whose replies the round loop is waiting for
+	private volatile CountDownLatch gossipReplies; // released once every peer pushed to in the current gossip round has replied
+	private CountDownLatch peersDone; // released once every peer has finished its gossip rounds or gone away
 
 	private Participant(String[] args) throws Coordinator.ArgumentQuantityException, IOException
+	{
+		this(args, Transport.TCP, null);
+	}
+
+	/**
+	 * @param transport How to connect to the coordinator and the other participants
+	 * @param logger The logger to use, or null to initialise the logger of this process
+	 */
+	Participant(String[] args, Transport transport, ParticipantLogger logger) throws Coordinator.ArgumentQuantityException, IOException
 	{
 		if (args.length < 4)
 		{
@@ -47,10 +88,21 @@ public class Participant extends Thread
 		this.loggerPort = Integer.parseInt(args[1]);
 		this.participantPort = Integer.parseInt(args[2]);
 		this.timeout = Integer.parseInt(args[3]);
+		this.heartbeatInterval = WireProtocol.heartbeatInterval(timeout);
+		this.heartbeatSilence = WireProtocol.heartbeatSilence(timeout);
 		System.out.println("Running with C: " + this.coordinatorPort + ", L: " + this.loggerPort + ", P: " + this.participantPort + ", T: " + this.timeout);
 
-		ParticipantLogger.initLogger(loggerPort, participantPort, timeout);
-		logger = ParticipantLogger.getLogger();
+		this.transport = transport;
+		if(logger == null)
+		{
+			ParticipantLogger.initLogger(loggerPort, participantPort, timeout);
+			logger = ParticipantLogger.getLogger();
+		}
+		this.logger = logger;
+		this.metrics = new Metrics("Participant", participantPort);
+		this.roundDurations = metrics.histogram("RoundDuration");
+		this.queuedMessages = metrics.queue("Queue.outboxMessages");
+		metrics.gauge("Queue.logBytes", logger::queuedBytes);
 
 		establishCoordinatorIO();
 	}
@@ -65,10 +117,14 @@ public class Participant extends Thread
 		{
 			try
 			{
-				coordinatorSocket = new Socket("localhost", coordinatorPort);
+				coordinatorSocket = transport.connect(coordinatorPort);
 				coordinatorSocket.setSoLinger(true, 0);
-				coordinatorOut = new PrintWriter(coordinatorSocket.getOutputStream(), true);
-				coordinatorIn = new BufferedReader(new InputStreamReader(coordinatorSocket.getInputStream()));
+				WireProtocol.configure(coordinatorSocket);
+				coordinatorRawOut = new BufferedOutputStream(coordinatorSocket.getOutputStream());
+				coordinatorOut = new PrintWriter(coordinatorRawOut); // flushed after each message
+				BufferedInputStream coordinatorInput = new BufferedInputStream(coordinatorSocket.getInputStream());
+				coordinatorIn = new BufferedReader(new InputStreamReader(coordinatorInput));
+				coordinatorData = new DataInputStream(coordinatorInput);
 				System.out.println(participantPort + " > Initialised Participant, listening on " + participantPort);
 				break;
 			}
@@ -93,11 +149,103 @@ public class Participant extends Thread
 	/**
 	 * Registers with the coordinator by sending a message
 	 */
-	private void registerWithCoordinator()
+	private void registerWithCoordinator() throws IOException
 	{
 		// 1. REGISTER WITH COORDINATOR by sending message "JOIN participantPort" to coordinatorPort
-		coordinatorOut.println("JOIN " + participantPort);
+		synchronized(coordinatorRawOut)
+		{
+			if(WireProtocol.isEnabled())
+			{
+				ByteBuffer frame = WireProtocol.encodeJoin(participantPort);
+				WireProtocol.write(coordinatorRawOut, frame);
+				metrics.sent(WireProtocol.JOIN, frame.remaining());
+			}
+			else
+			{
+				String message = "JOIN " + participantPort;
+				coordinatorOut.println(message);
+				coordinatorOut.flush();
+				metrics.sent(WireProtocol.JOIN, message.length() + 1);
+			}
+			lastCoordinatorWrite = System.currentTimeMillis();
+		}
 		logger.joinSent(coordinatorPort);
+		if(heartbeatInterval > 0)
+		{
+			new CoordinatorHeartbeat().start();
+		}
+	}
+
+	/**
+	 * Sends the coordinator a HEARTBEAT straight after the JOIN, so it knows to expect them, then whenever nothing else
+	 * has been sent to it for the heartbeat interval, so it can tell a participant that is waiting from one that has
+	 * crashed, until the connection is closed
+	 */
+	private class CoordinatorHeartbeat extends Thread
+	{
+		CoordinatorHeartbeat()
+		{
+			super(participantPort + " heartbeat");
+			setDaemon(true); // never keeps a participant that has failed running
+		}
+
+		@Override
+		public void run()
+		{
+			try
+			{
+				boolean first = true;
+				while(!coordinatorSocket.isClosed())
+				{
+					long idle;
+					synchronized(coordinatorRawOut)
+					{
+						idle = System.currentTimeMillis() - lastCoordinatorWrite;
+						if((first || idle >= heartbeatInterval) && !coordinatorSocket.isClosed())
+						{
+							WireProtocol.write(coordinatorRawOut, heartbeat);
+							metrics.sent(WireProtocol.HEARTBEAT, heartbeat.remaining());
+							lastCoordinatorWrite = System.currentTimeMillis();
+							idle = 0;
+							first = false;
+						}
+					}
+					Thread.sleep(heartbeatInterval - idle);
+				}
+			}
+			catch(IOException e)
+			{
+				if(!coordinatorSocket.isClosed())
+				{
+					e.printStackTrace();
+				}
+			}
+			catch(InterruptedException e)
+			{
+				// the participant is going away
+			}
+		}
+	}
+
+	/**
+	 * Reads the next binary frame from the coordinator
+	 * @param expected The message type that should be received
+	 * @return the frame positioned after its message type
+	 */
+	private ByteBuffer readCoordinatorFrame(byte expected, String name) throws IOException, WrongMessageException
+	{
+		coordinatorFrame = WireProtocol.readFrame(coordinatorData, coordinatorFrame);
+		if(coordinatorFrame == null)
+		{
+			throw new IOException("Connection to the coordinator closed");
+		}
+		byte type = coordinatorFrame.get();
+		if(type != expected)
+		{
+			throw new WrongMessageException(name, "frame type " + type);
+		}
+		metrics.received(type, 4 + coordinatorFrame.limit());
+		return coordinatorFrame;
 	}
 
 	/**
@@ -108,12 +256,26 @@ public class Participant extends Thread
 	{
 		// 2. LISTEN FOR DETAILS of other participants on coordinatorPort <- message: "DETAILS [ports]"
 		//    add all of the participants to the database
+		if(WireProtocol.isEnabled())
+		{
+			ByteBuffer frame = readCoordinatorFrame(WireProtocol.DETAILS, "DETAILS");
+			for(int count = frame.getInt(); count > 0; count--)
+			{
+				participants.add(frame.getInt());
+			}
+			maxRounds = participants.size();
+			logger.detailsReceived(participants);
+			System.out.println(participantPort + " > Participants: " + participants.toString());
+			return;
+		}
 		while (true)
 		{
-			String[] input = coordinatorIn.readLine().split(" ");
+			String line = coordinatorIn.readLine();
+			String[] input = line.split(" ");
 			System.out.println(participantPort + " > Adding details of length: " + input.length);
 			if(input[0].equals("DETAILS"))
 			{
+				metrics.received(WireProtocol.DETAILS, line.length() + 1);
 				for(int i = 1; i < input.length; i++)
 				{
 					System.out.println(participantPort + " > Adding detail: " + input[i]);
@@ -132,37 +294,84 @@ public class Participant extends Thread
 	}
 
 	/**
-	 * Listens for the vote options sent by the coordinator
+	 * Listens for the vote options sent by the coordinator, either for its single election or for its next ballot
+	 * @return the election or ballot, or null if the coordinator has closed the connection
 	 * @throws IOException if there is a problem with the socket
 	 */
-	private void listenForVoteOptions() throws IOException, WrongMessageException
+	private Ballot listenForVoteOptions() throws IOException, WrongMessageException
 	{
 		// 3. GET VOTE OPTIONS from coordinator on coordinatorPort <- message: "VOTE_OPTIONS [option]"
 		//	  then decide own vote from options (randomly)
-		while (true)
+		//    a coordinator running numbered ballots sends "BALLOT_OPTIONS ballot [option]" for each of them instead
+		int id = 0;
+		List<String> options = new ArrayList<>();
+		if(WireProtocol.isEnabled())
 		{
-			String[] input = coordinatorIn.readLine().split(" ");
-			if(input[0].equals("VOTE_OPTIONS"))
+			coordinatorFrame = WireProtocol.readFrame(coordinatorData, coordinatorFrame);
+			if(coordinatorFrame == null)
 			{
-				for(int i = 1; i < input.length; i++)
-				{
-					options.add(input[i]);
-				}
-				logger.voteOptionsReceived(options);
-				System.out.println(participantPort + " > Options: " + options.toString());
-				break;
+				return null;
 			}
-			else
+			byte type = coordinatorFrame.get();
+			if(type == WireProtocol.BALLOT_OPTIONS)
+			{
+				id = coordinatorFrame.getInt();
+			}
+			else if(type != WireProtocol.VOTE_OPTIONS)
+			{
+				throw new WrongMessageException("VOTE_OPTIONS", "frame type " + type);
+			}
+			for(int count = coordinatorFrame.getInt(); count > 0; count--)
+			{
+				options.add(WireProtocol.getOption(coordinatorFrame));
+			}
+			metrics.received(type, 4 + coordinatorFrame.limit());
+		}
+		else
+		{
+			String line = coordinatorIn.readLine();
+			if(line == null)
+			{
+				return null;
+			}
+			String[] input = line.split(" ");
+			int first = 1; // the first option
+			if(input[0].equals("BALLOT_OPTIONS"))
+			{
+				id = Integer.parseInt(input[1]);
+				first = 2;
+			}
+			else if(!input[0].equals("VOTE_OPTIONS"))
 			{
 				throw new WrongMessageException("VOTE_OPTIONS", input[0]);
 			}
+			for(int i = first; i < input.length; i++)
+			{
+				options.add(input[i]);
+			}
+			metrics.received(id == 0 ? WireProtocol.VOTE_OPTIONS : WireProtocol.BALLOT_OPTIONS, line.length() + 1);
 		}
+		logger.voteOptionsReceived(options);
+		System.out.println(participantPort + " > Options: " + options.toString() + (id == 0 ? "" : " for ballot " + id));
+		return new Ballot(id, options);
+	}
 
-		// Choose option and add it to the map
-		Collections.shuffle(options);
-		vote = options.get(0);
-		votes.put(participantPort, vote);
-		System.out.println(participantPort + " > Selected vote: " + vote);
+	/**
+	 * @return how long a connection to a peer may be idle before a HEARTBEAT is sent on it, 0 in a gossip election,
+	 *         where each round only uses a few of the links and heartbeats on all the others would bring back the
+	 *         O(N^2) messages gossip avoids
+	 */
+	private int peerHeartbeatInterval()
+	{
+		return gossip && !multipleBallots ? 0 : heartbeatInterval;
+	}
+
+	/**
+	 * @return how long a peer may go unheard before it is taken to have crashed, 0 when it sends no heartbeats
+	 */
+	private int peerHeartbeatSilence()
+	{
+		return gossip && !multipleBallots ? 0 : heartbeatSilence;
 	}
 
 	/**
@@ -176,95 +385,337 @@ public class Participant extends Thread
 		//    second onwards <- add any new info received before starting the round to the records
 		//                      send out this new info to each of the participants
 		//                      if the records are complete then continue to next step, otherwise start new round
-		round = 0;
+		//    every peer sends exactly one VOTE message per round (possibly with no votes) so the n-th message on a
+		//    connection always belongs to round n and the round can end as soon as the last one arrives
+		//    a peer that already knows every vote when it starts a round sends VOTE_COMPLETE instead, once every peer
+		//    has done so in a round everyone knows every vote and the remaining rounds are skipped
+		election.barrier = new RoundBarrier(maxRounds, gossip ? 0 : 2 * participants.size()); // one writer and one listener per peer
+		peersDone = new CountDownLatch(participants.size());
 		listenForParticipants(); // Allow all other participants to connect to this one
-		connectToParticipants(); // Attempt to establish a connection to all other participants and complete the first round
-		Thread.sleep(timeout);
-		round += 1;
+		connectToParticipants(); // Attempt to establish a connection to all other participants
 
-		while(round <= maxRounds)
+		if(gossip)
+		{
+			executeGossipRounds();
+		}
+		else
+		{
+			election.executeRounds();
+		}
+
+		sendToAll(RoundMessage.CLOSE);
+		election.printVotes();
+	}
+
+	/**
+	 * Runs the numbered ballots the coordinator sends, each on its own worker so several can be in progress at once
+	 * over the same connections, until the coordinator closes its connection
+	 * @param first The first ballot, whose options have already been received
+	 */
+	private void runBallots(Ballot first) throws IOException, WrongMessageException, InterruptedException
+	{
+		multipleBallots = true;
+		if(gossip)
+		{
+			System.out.println(participantPort + " > Gossip only applies to a single election, ballots exchange votes in rounds");
+		}
+		listenForParticipants();
+		connectToParticipants();
+		if(!accepted.await(timeout, TimeUnit.MILLISECONDS)) // every connection has to be up before a ballot's barrier is sized
 		{
-			logger.beginRound(round);
-			System.out.println(participantPort + " > Round start : " + round);
+			System.out.println(participantPort + " > Timed out waiting for peers to connect");
+		}
 
-			for(ParticipantListener thread: participantReadSockets.keySet())
+		long start = System.currentTimeMillis();
+		int count = 0;
+		for(Ballot ballot = first; ballot != null; ballot = listenForVoteOptions())
+		{
+			ballot.barrier = new RoundBarrier(maxRounds, liveParties());
+			synchronized(ballots)
+			{
+				ballots.put(ballot.id, ballot);
+				lastBallot = Math.max(lastBallot, ballot.id);
+				ballots.notifyAll();
+			}
+			Workers.start(ballot);
+			count += 1;
+		}
+		synchronized(ballots) // the coordinator only closes the connection once every ballot has been reported
+		{
+			while(!ballots.isEmpty())
 			{
-				thread.readyUp();
+				ballots.wait();
 			}
+		}
+		long elapsed = Math.max(1, System.currentTimeMillis() - start);
+		System.out.println(participantPort + " > " + count + " ballots in " + elapsed + "ms, " + (count * 1000L / elapsed) + " ballots/s");
+
+		sendToAll(RoundMessage.CLOSE);
+		synchronized(coordinatorRawOut) // not in the middle of a heartbeat
+		{
+			coordinatorSocket.setSoLinger(false, 0); // the coordinator has finished with the connection so it can be closed normally
+			coordinatorIn.close();
+			coordinatorOut.close();
+			coordinatorSocket.close();
+		}
+	}
 
-			boolean finished = false;
-			while(!finished) // keep checking if any of the listeners or writers are still in the first round and wait for them
+	/**
+	 * @return the numbered ballot with an id, waiting up to the timeout for the coordinator to send its options if it
+	 *         has not yet, or null if the ballot has already finished here
+	 */
+	private Ballot numberedBallot(int id) throws InterruptedException
+	{
+		long deadline = System.currentTimeMillis() + timeout;
+		synchronized(ballots)
+		{
+			long remaining;
+			while(id > lastBallot && (remaining = deadline - System.currentTimeMillis()) > 0)
 			{
-				finished = true;
-				for(ParticipantWriter thread : participantWriteSockets.keySet())
-				{
-					if(thread.thisRound == round)
-					{
-						finished = false;
-					}
-				}
-				for(ParticipantListener thread : participantReadSockets.keySet())
-				{
-					if(!thread.isDone())
-					{
-						thread.readyUp();//finished = false;
-					}
-				}
-				Thread.sleep(timeout);
+				ballots.wait(remaining);
 			}
+			return ballots.get(id);
+		}
+	}
 
-			Thread.sleep(timeout);
+	/**
+	 * @return the election and every numbered ballot in progress
+	 */
+	private List<Ballot> openBallots()
+	{
+		List<Ballot> open = new ArrayList<>();
+		if(election != null)
+		{
+			open.add(election);
+		}
+		synchronized(ballots)
+		{
+			open.addAll(ballots.values());
+		}
+		return open;
+	}
 
-			synchronized(newVotes)
+	/**
+	 * @return the number of writers and listeners still running, the parties of a new ballot's round barrier
+	 */
+	private int liveParties()
+	{
+		int parties = 0;
+		synchronized(participantWriteSockets)
+		{
+			for(ParticipantWriter thread : participantWriteSockets.keySet())
+			{
+				parties += thread.running ? 1 : 0;
+			}
+		}
+		synchronized(participantReadSockets)
+		{
+			for(ParticipantListener thread : participantReadSockets.keySet())
 			{
-				votes.putAll(newVotes);
-				newVotes.clear();
+				parties += thread.running ? 1 : 0;
 			}
-			logger.endRound(round);
-			System.out.println(participantPort + " > Round complete: " + round);
+		}
+		return parties;
+	}
+
+	/**
+	 * Push-pull gossip instead of the full mesh: each round this participant pushes every vote it knows to a few
+	 * random peers, and each of them replies with the votes it knows that were missing from the push. Peers keep
+	 * answering pushes after they have stopped gossiping themselves, so a participant stops as soon as it knows every
+	 * vote and the votes spread to everyone in O(log N) rounds, O(N log N) messages in total. The GOSSIP_DONE each
+	 * participant sends every peer once it stops carries the votes it knows, so a peer that fell behind is not left
+	 * pulling from participants that have already closed.
+	 *
+	 * If the votes are still incomplete once the rounds are spent, anti-entropy rounds pull from every peer still live,
+	 * and again from those that have not answered until they answer, finish or are suspected of crashing; a round that
+	 * turns up votes starts the pulls over. Whatever is still missing once the peers have finished no live participant
+	 * knows, it was the vote of a participant that crashed before passing it on, and the outcome is decided on the
+	 * votes known, which are the voters reported to the coordinator.
+	 * @throws InterruptedException if the thread is interrupted
+	 */
+	private void executeGossipRounds() throws InterruptedException
+	{
+		if(sharedConnections && !accepted.await(timeout, TimeUnit.MILLISECONDS)) // half of the writers are started by the accept loop
+		{
+			System.out.println(participantPort + " > Timed out waiting for peers to connect");
+		}
+		Random random = new Random();
+		VoteTable votes = election.votes;
+		votes.merge(election.roundPorts, election.roundOptions); // this participant's own vote
+		boolean complete = votes.isComplete();
+		int round = 1;
+		while(!complete && round <= maxRounds)
+		{
+			List<ParticipantWriter> targets = livePeers();
+			Collections.shuffle(targets, random);
+			complete = gossipRound(round, targets.subList(0, Math.min(fanout, targets.size())));
+			round += 1;
+		}
+
+		// convergence check, before deciding pull from every live peer, then again from those that have not answered
+		// until they do, finish or are suspected of crashing; a round that turns up votes pulls from everyone again
+		int firstPull = round;
+		int known = votes.knownCount();
+		int pulls = 0;
+		List<ParticipantWriter> pending = complete ? Collections.emptyList() : livePeers();
+		while(!complete && !pending.isEmpty() && pulls < maxRounds)
+		{
+			System.out.println(participantPort + " > Gossip has not converged, knowing " + votes.knownCount() + " of " + votes.size() + " votes, pulling from "
+			                   + pending.size() + " live peers");
+			long pullStart = System.nanoTime();
+			complete = gossipRound(round, pending);
 			round += 1;
+			pulls += 1;
+			if(votes.knownCount() > known)
+			{
+				known = votes.knownCount();
+				firstPull = round;
+				pulls = 0;
+				pending = livePeers();
+			}
+			else
+			{
+				pending = unanswered(pending, firstPull, pullStart);
+			}
+		}
+
+		// keep answering pushes until every peer has finished too, then close the connections; the votes go with it so
+		// a peer still gossiping learns them before the participants that know them close
+		int count = votes.known(election.roundPorts, election.roundOptions);
+		sendToAll(new RoundMessage(election, 0, WireProtocol.GOSSIP_DONE, new int[]{round, participantPort}, election.roundPorts, election.roundOptions, count));
+		if(!peersDone.await(timeout, TimeUnit.MILLISECONDS))
+		{
+			System.out.println(participantPort + " > Timed out waiting for " + peersDone.getCount() + " peers to finish gossiping");
 		}
+		votes.merge(election.roundPorts, election.roundOptions); // late replies and the votes the peers finished with
+		complete = votes.isComplete();
 
-		System.out.println(participantPort + " > Votes collected:");
-		votes.forEach((key, value) -> System.out.println(key + " -> " + value));
+		if(!complete)
+		{
+			System.out.println(participantPort + " > Gossip did not converge, deciding on the " + votes.knownCount() + " of " + votes.size()
+			                   + " votes known, the voters reported are " + votes.knownPorts());
+		}
 	}
 
 	/**
-	 * Counts up all of the votes and decides on the winning option
+	 * @param pulled The peers pulled from in the last round
+	 * @param firstPull The first round of the pulls, a reply to any of them is an answer
+	 * @param roundStart System.nanoTime() when the last round began
+	 * @return the peers that have not answered a pull, finished gossiping or gone away, and have been heard from
+	 *         recently enough that the failure detector does not suspect them
 	 */
-	private void decideOutcome()
+	private List<ParticipantWriter> unanswered(List<ParticipantWriter> pulled, int firstPull, long roundStart)
 	{
-		// 5. DECIDE ON OUTCOME using majority <- draw = first option according to ascendant lexicographic order of tied options
-		Map<String, Integer> voteCount = new HashMap<>();
-		for(String option : votes.values()) // count votes
+		List<ParticipantWriter> pending = new ArrayList<>();
+		for(ParticipantWriter writer : pulled)
 		{
-			if(voteCount.containsKey(option)) // if the option has already been seen then increment
+			ParticipantListener listener = listenerFor(writer);
+			if(!writer.running || listener == null) // a peer that has sent nothing at all is only waited for as long as one pull
 			{
-				voteCount.put(option, voteCount.get(option) + 1);
+				continue;
 			}
-			else // if the option hasn't already been seen it then add it with a value of 1
+			if(listener.gossipReplied >= firstPull || listener.done || !listener.running || listener.suspected || listener.stalled(roundStart))
 			{
-				voteCount.put(option, 1);
+				continue;
 			}
+			pending.add(writer);
 		}
+		return pending;
+	}
 
-		winningVote = voteCount.keySet().iterator().next();
-		for(String option : voteCount.keySet())
+	/**
+	 * @return the listener reading from the peer a writer writes to, or null if the peer has sent nothing yet
+	 */
+	private ParticipantListener listenerFor(ParticipantWriter writer)
+	{
+		synchronized(participantReadSockets)
 		{
-			if(voteCount.get(option) > voteCount.get(winningVote)) // if the next option is higher then use that
+			for(Map.Entry<ParticipantListener, Socket> entry : participantReadSockets.entrySet())
 			{
-				winningVote = option;
+				if(sharedConnections ? entry.getValue() == writer.socket : entry.getKey().thisPort == writer.socket.getPort())
+				{
+					return entry.getKey();
+				}
 			}
-			else if(voteCount.get(option) == voteCount.get(winningVote)) // if the next option is tied then pick the lexicographic first
+		}
+		return null;
+	}
+
+	/**
+	 * @return the writers to every peer that has not gone away
+	 */
+	private List<ParticipantWriter> livePeers()
+	{
+		List<ParticipantWriter> peers = new ArrayList<>();
+		synchronized(participantWriteSockets)
+		{
+			for(ParticipantWriter writer : participantWriteSockets.keySet())
 			{
-				if(!(winningVote.compareTo(option) < 0)) // if the new option is first lexicographically
+				if(writer.running)
 				{
-					winningVote = option;
+					peers.add(writer);
 				}
 			}
 		}
+		return peers;
+	}
+
+	/**
+	 * Pushes every vote known to some peers and merges what they reply with
+	 * @param round The gossip round
+	 * @param targets The peers to push to
+	 * @return true if every vote is now known
+	 */
+	private boolean gossipRound(int round, List<ParticipantWriter> targets) throws InterruptedException
+	{
+		logger.beginRound(round);
+		long roundStart = System.nanoTime();
+		System.out.println(participantPort + " > Gossip round start : " + round);
+
+		VoteTable votes = election.votes;
+		int[] roundPorts = election.roundPorts;
+		int[] roundOptions = election.roundOptions;
+		votes.merge(roundPorts, roundOptions);
+		int count = votes.known(roundPorts, roundOptions);
+		RoundMessage push = new RoundMessage(election, 0, WireProtocol.GOSSIP, new int[]{round, participantPort}, roundPorts, roundOptions, count);
+		gossipReplies = new CountDownLatch(targets.size());
+		gossipRound = round;
+		for(ParticipantWriter writer : targets)
+		{
+			writer.send(push);
+		}
+
+		if(!gossipReplies.await(timeout, TimeUnit.MILLISECONDS)) // the timeout only bounds how long we wait for a crashed peer
+		{
+			System.out.println(participantPort + " > Gossip round " + round + " timed out waiting for replies");
+		}
 
-		logger.outcomeDecided(winningVote, new ArrayList<>(votes.keySet()));
+		votes.merge(roundPorts, roundOptions);
+		logger.endRound(round);
+		roundDurations.record(System.nanoTime() - roundStart);
+		System.out.println(participantPort + " > Gossip round complete: " + round);
+		election.printLeader();
+		return votes.isComplete();
+	}
+
+	/**
+	 * Hands a round message to every writer and remembers it for writers that have not started yet, numbered ballots
+	 * only start once every connection is up so their messages are not kept
+	 * @param message The message to send
+	 */
+	private void sendToAll(RoundMessage message)
+	{
+		synchronized(participantWriteSockets)
+		{
+			if(message.ballot == null || message.ballot == election)
+			{
+				sentMessages.add(message);
+			}
+			for(ParticipantWriter thread : participantWriteSockets.keySet())
+			{
+				thread.send(message);
+			}
+		}
 	}
 
 	/**
@@ -275,22 +726,54 @@ public class Participant extends Thread
 		// 6. INFORM COORDINATOR of outcome on coordinatorPort <- "OUTCOME outcome [port]"
 		//    where outcome is the decided winning vote and the list is all the participants who took part
 
+		List<Integer> voters = election.votes.knownPorts();
+		String winningVote = election.options.get(election.winningVote);
 		StringBuilder message = new StringBuilder("OUTCOME " + winningVote + " ");
-		for(int participant: votes.keySet())
+		for(int participant: voters)
 		{
 			message.append(participant + " ");
 		}
-		coordinatorOut.println(message);
-		logger.outcomeNotified(winningVote, new ArrayList<>(votes.keySet()));
+		synchronized(coordinatorRawOut)
+		{
+			if(WireProtocol.isEnabled())
+			{
+				try
+				{
+					ByteBuffer frame = WireProtocol.encodeOutcome(election.winningVote, voters);
+					WireProtocol.write(coordinatorRawOut, frame);
+					metrics.sent(WireProtocol.OUTCOME, frame.remaining());
+				}
+				catch(IOException e)
+				{
+					e.printStackTrace();
+				}
+			}
+			else
+			{
+				coordinatorOut.println(message);
+				coordinatorOut.flush();
+				metrics.sent(WireProtocol.OUTCOME, message.length() + 1);
+			}
+			lastCoordinatorWrite = System.currentTimeMillis();
+		}
+		logger.outcomeNotified(winningVote, voters);
 		System.out.println(participantPort + " > Outcome: " + message.toString() + "sent to coordinator");
 
 		try // close everything
 		{
-			coordinatorIn.close();
-			coordinatorOut.close();
-			coordinatorSocket.close();
+			synchronized(coordinatorRawOut) // not in the middle of a heartbeat
+			{
+				coordinatorSocket.setSoLinger(false, 0); // closed normally, a reset could discard the OUTCOME before the coordinator reads it
+				coordinatorIn.close();
+				coordinatorOut.close();
+				coordinatorSocket.close();
+			}
 
-			this.stop();
+			ServerSocket server = serverSocket;
+			if(server != null) // stop waiting for peers that never connected
+			{
+				server.close();
+			}
 		}
 		catch(IOException e)
 		{
@@ -299,283 +782,1159 @@ public class Participant extends Thread
 	}
 
 	/**
-	 * Attempt to establish a connection to each of the other participants
+	 * Sends the outcome of a numbered ballot to the coordinator, the connection stays open for the ballots that follow
+	 * @param ballot The ballot, which has decided its outcome
 	 */
-	private void connectToParticipants()
+	private void reportOutcome(Ballot ballot)
 	{
-		for(int participant : participants)
+		List<Integer> voters = ballot.votes.knownPorts();
+		String winningVote = ballot.options.get(ballot.winningVote);
+		StringBuilder message = new StringBuilder("BALLOT_OUTCOME " + ballot.id + " " + winningVote);
+		for(int participant : voters)
 		{
-			try
+			message.append(" ").append(participant);
+		}
+		synchronized(coordinatorRawOut) // ballots finish on their own threads
+		{
+			if(WireProtocol.isEnabled())
 			{
-				Socket socket = new Socket("localhost", participant);
-				logger.connectionEstablished(participant);
-				ParticipantWriter thread = new ParticipantWriter(socket);
-				synchronized(participantWriteSockets)
+				try
+				{
+					ByteBuffer frame = WireProtocol.encodeBallotOutcome(ballot.id, ballot.winningVote, voters);
+					WireProtocol.write(coordinatorRawOut, frame);
+					metrics.sent(WireProtocol.BALLOT_OUTCOME, frame.remaining());
+				}
+				catch(IOException e)
 				{
-					participantWriteSockets.put(thread, socket);
+					e.printStackTrace();
 				}
-				thread.start();
-				System.out.println(participantPort + " > Connecting to " + participant);
 			}
-			catch(IOException e)
+			else
 			{
-				e.printStackTrace();
+				coordinatorOut.println(message);
+				coordinatorOut.flush();
+				metrics.sent(WireProtocol.BALLOT_OUTCOME, message.length() + 1);
 			}
+			lastCoordinatorWrite = System.currentTimeMillis();
 		}
+		logger.outcomeNotified(winningVote, voters);
+		System.out.println(ballot.prefix() + "Outcome: " + message + " sent to coordinator");
 	}
 
 	/**
-	 * Waits for all other participants to open a connection and assigns a ParticipantListener to them
+	 * Attempt to establish a connection to each of the other participants, retrying until the timeout
+	 * in case they have not started listening yet. With shared connections only the participants on
+	 * a higher port are dialled and the connection is used in both directions.
 	 */
-	public void listenForParticipants()
+	private void connectToParticipants()
 	{
-		this.start();
+		try
+		{
+			dialParticipants();
+		}
+		finally
+		{
+			dialled.countDown();
+		}
 	}
 
-	@Override
-	public void run()
+	private void dialParticipants()
 	{
-		try
+		int parties = sharedConnections ? 2 : 1; // the writer, and with shared connections the listener, of each connection
+		for(int participant : participants)
 		{
-			serverSocket = new ServerSocket(participantPort);
-			logger.startedListening();
-			Socket socket;
-			while(participantReadSockets.size() < participants.size())
+			if(sharedConnections && participant < participantPort) // the other participant dials this one
 			{
-				socket = serverSocket.accept();
-				logger.connectionAccepted(socket.getPort());
-				socket.setSoLinger(true, 0);
-				System.out.println(participantPort + " > A participant has connected to " + participantPort);
-
-				// Create a thread to handle the participant and add it to the map
-				ParticipantListener thread = new ParticipantListener(socket);
-				synchronized(participantReadSockets) // only one thread can be interacting with 'participants' at a time
-				{
-					participantReadSockets.put(thread, socket);
+				continue;
+			}
+			long deadline = System.currentTimeMillis() + timeout;
+			while(true)
+			{
+				try
+				{
+					Socket socket = transport.connect(participant);
+					logger.connectionEstablished(participant);
+					socket.setSoLinger(true, 0);
+					addWriter(socket);
+					if(sharedConnections)
+					{
+						addListener(socket);
+					}
+					System.out.println(participantPort + " > Connecting to " + participant);
+					break;
+				}
+				catch(ConnectException e)
+				{
+					if(System.currentTimeMillis() >= deadline)
+					{
+						System.out.println(participantPort + " > Could not connect to " + participant);
+						leaveAll(parties); // this connection will never take part in a round
+						break;
+					}
+					try
+					{
+						Thread.sleep(10);
+					}
+					catch(InterruptedException e2)
+					{
+						e2.printStackTrace();
+					}
+				}
+				catch(IOException e)
+				{
+					e.printStackTrace();
+					leaveAll(parties);
+					break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Releases every round of the open ballots on behalf of parties that will never take part
+	 * @param parties The number of parties
+	 */
+	private void leaveAll(int parties)
+	{
+		for(Ballot ballot : openBallots())
+		{
+			for(int i = 0; i < parties; i++)
+			{
+				ballot.barrier.leave(1);
+			}
+		}
+	}
+
+	/**
+	 * Finds the writer that sends to the participant on the other end of a listener's connection, waiting for this
+	 * participant to finish dialling if need be
+	 * @param socket The socket of the listener
+	 * @param port The port of the participant the listener is handling
+	 * @return the writer or null if there is no connection to that participant
+	 */
+	private ParticipantWriter writerFor(Socket socket, int port) throws InterruptedException
+	{
+		dialled.await();
+		synchronized(participantWriteSockets)
+		{
+			for(Map.Entry<ParticipantWriter, Socket> entry : participantWriteSockets.entrySet())
+			{
+				if(sharedConnections ? entry.getValue() == socket : entry.getValue().getPort() == port)
+				{
+					return entry.getKey();
 				}
-				thread.start();
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Starts a ParticipantWriter on a connection and catches it up with the rounds that have already been sent
+	 * @param socket The socket of the connection
+	 * @throws IOException if there is a problem with the socket
+	 */
+	private void addWriter(Socket socket) throws IOException
+	{
+		ParticipantWriter thread;
+		synchronized(participantWriteSockets)
+		{
+			thread = new ParticipantWriter(socket, participantWriteSockets.size());
+			participantWriteSockets.put(thread, socket);
+			for(RoundMessage message : sentMessages)
+			{
+				thread.send(message);
+			}
+		}
+		Workers.start(thread);
+	}
+
+	/**
+	 * Starts a ParticipantListener on a connection
+	 * @param socket The socket of the connection
+	 * @throws IOException if there is a problem with the socket
+	 */
+	private void addListener(Socket socket) throws IOException
+	{
+		ParticipantListener thread;
+		synchronized(participantReadSockets) // only one thread can be interacting with 'participants' at a time
+		{
+			thread = new ParticipantListener(socket, participantReadSockets.size());
+			participantReadSockets.put(thread, socket);
+		}
+		Workers.start(thread);
+	}
+
+	/**
+	 * Waits for all other participants to open a connection and assigns a ParticipantListener to them
+	 */
+	public void listenForParticipants()
+	{
+		this.start();
+	}
+
+	@Override
+	public void run()
+	{
+		try
+		{
+			serverSocket = transport.listen(participantPort);
+			logger.startedListening();
+			int expected = participants.size(); // with shared connections only the participants on a lower port dial this one
+			if(sharedConnections)
+			{
+				expected = (int) participants.stream().filter(participant -> participant < participantPort).count();
+			}
+			Socket socket;
+			for(int accepted = 0; accepted < expected; accepted++)
+			{
+				socket = serverSocket.accept();
+				logger.connectionAccepted(socket.getPort());
+				socket.setSoLinger(true, 0);
+				System.out.println(participantPort + " > A participant has connected to " + participantPort);
+
+				// Create a thread to handle the participant, the writer first so the listener can reply on it straight away
+				if(sharedConnections)
+				{
+					addWriter(socket);
+				}
+				addListener(socket);
 			}
 			serverSocket.close();
 			System.out.println(participantPort + " > All participants have connected to " + participantPort);
 		}
 		catch(IOException e)
 		{
-			e.printStackTrace();
+			if(serverSocket == null || !serverSocket.isClosed()) // closed once the outcome is sent, some peers never connected
+			{
+				e.printStackTrace();
+			}
+		}
+		finally
+		{
+			accepted.countDown();
 		}
 	}
 
 	private class ParticipantWriter extends Thread
 	{
 		private final Socket socket; // the socket of the participant this thread is handling
-		private final PrintWriter out; // send messages to the participant
-
-		private int thisRound;
+		private final BufferedOutputStream out; // messages are staged here and written out once the outbox is empty
+		private final BlockingQueue<RoundMessage> outbox = new LinkedBlockingQueue<>(); // messages handed over by the round loop
+		private final List<RoundMessage> staged = new ArrayList<>(); // messages written to out but not yet flushed
+		private final int slot; // the position of this writer's entries in each ballot
+		private volatile boolean running = true; // false once the writer has stopped, gossip rounds skip it
 
 		/**
 		 * Handles sending out messages to other participants
 		 * @param socket
+		 * @param slot The position of this writer's entries in each ballot
 		 * @throws IOException
 		 */
-		public ParticipantWriter(Socket socket) throws IOException
+		public ParticipantWriter(Socket socket, int slot) throws IOException
 		{
-			this.thisRound = 1;
 			this.socket = socket;
+			this.slot = slot;
 			socket.setSoLinger(true, 0);
-			this.out = new PrintWriter(socket.getOutputStream(), true);
+			WireProtocol.configure(socket);
+			this.out = new BufferedOutputStream(socket.getOutputStream(), WireProtocol.BUFFER_SIZE);
 		}
 
 		@Override
 		public void run()
 		{
-			while (true)
+			try
 			{
-				try
+				RoundMessage message = take();
+				while(message != RoundMessage.CLOSE) // until all rounds are complete
 				{
-					if(thisRound == round && round == 1) // the first round
+					// stage everything queued, concurrent ballots and gossip replies, so it goes out in as few writes
+					// as possible, the buffer writes itself out early if it fills up
+					WireProtocol.put(out, message.bytes);
+					staged.add(message);
+					message = WireProtocol.flushEachMessage() ? null : next(false);
+					if(message == null)
 					{
-						List<Vote> messageVotes = new ArrayList<>();
-						messageVotes.add(new Vote(participantPort, vote));
-						sendMessage("VOTE " + participantPort + " " + vote);
-						logger.votesSent(socket.getPort(), messageVotes);
-						System.out.println(participantPort + " > Vote sent to: " + socket.getPort());
-						thisRound += 1;
+						out.flush();
+						sent();
+						message = take();
 					}
-					else if(thisRound == round && round <= maxRounds) // successive rounds
+				}
+				out.flush();
+				sent();
+				System.out.println(participantPort + " > Finished sending to: " + socket.getPort());
+			}
+			catch(IOException | InterruptedException e)
+			{
+				e.printStackTrace();
+			}
+			finally
+			{
+				running = false;
+				for(Ballot ballot : openBallots())
+				{
+					ballot.barrier.leave(ballot.sent[slot] + 1);
+				}
+				try
+				{
+					if(sharedConnections) // the listener closes the socket once the other side has finished too
 					{
-						synchronized(newVotes)
-						{
-							if(newVotes.size() > 0) // if there is new information
-							{
-								List<Vote> messageVotes = new ArrayList<>();
-								StringBuilder message = new StringBuilder("VOTE ");
-								for(int participant : newVotes.keySet())
-								{
-									messageVotes.add(new Vote(participant, newVotes.get(participant)));
-									message.append(participant + " " + newVotes.get(participant));
-								}
-								sendMessage(message.toString());
-								logger.votesSent(socket.getPort(), messageVotes);
-								System.out.println(participantPort + " > Message: " + message.toString() + " sent to: " + socket.getPort());
-
-							}
-						}
-						thisRound += 1;
+						out.flush();
+						socket.shutdownOutput();
 					}
-					else if(round > maxRounds) // all rounds are complete
+					else
 					{
-						System.out.println(participantPort + " > Finished sending to: " + socket.getPort());
-						socket.close();
 						out.close();
-						break;
+						socket.close();
 					}
-					else
+				}
+				catch(IOException e)
+				{
+					if(!socket.isClosed())
 					{
-						Thread.sleep(timeout);
+						e.printStackTrace();
 					}
 				}
-				catch(IOException | InterruptedException e)
+			}
+		}
+
+		/**
+		 * Queues the message for a round to be sent to the participant
+		 * @param message The message to be sent
+		 */
+		public void send(RoundMessage message)
+		{
+			queuedMessages.increment();
+			outbox.add(message);
+		}
+
+		/**
+		 * Waits for the next message, sending a HEARTBEAT each time the connection has been idle for the heartbeat
+		 * interval, so round messages stand in for heartbeats while there are any
+		 * @return the next message in the outbox
+		 */
+		private RoundMessage take() throws IOException, InterruptedException
+		{
+			RoundMessage message = next(true);
+			while(message == null)
+			{
+				try
+				{
+					WireProtocol.write(socket.getOutputStream(), heartbeat); // past the buffer, which is empty, so a failed write leaves nothing in it
+				}
+				catch(IOException e)
 				{
-					e.printStackTrace();
-					break;
+					return RoundMessage.CLOSE; // the peer has closed the connection, once it had every round it needed or by crashing
 				}
+				metrics.sent(WireProtocol.HEARTBEAT, heartbeat.remaining());
+				message = next(true);
 			}
+			return message;
 		}
 
 		/**
-		 * Sends a message to the participant
-		 * @param message The message to be sent
+		 * @param wait true to wait for a message if the outbox is empty, up to the heartbeat interval if heartbeats are on
+		 * @return the next message in the outbox, or null if it is empty and wait is false or the interval has passed
 		 */
-		public void sendMessage(String message)
+		private RoundMessage next(boolean wait) throws InterruptedException
 		{
-			out.println(message);
+			int interval = peerHeartbeatInterval();
+			RoundMessage message = !wait ? outbox.poll() : interval > 0 ? outbox.poll(interval, TimeUnit.MILLISECONDS) : outbox.take();
+			if(message != null)
+			{
+				queuedMessages.decrement();
+			}
+			return message;
+		}
+
+		/**
+		 * Records the staged messages as sent once they have been flushed
+		 */
+		private void sent()
+		{
+			for(RoundMessage message : staged)
+			{
+				metrics.sent(message.type, message.bytes.remaining());
+				logger.votesSent(socket.getPort(), message.ports, message.options, message.count, message.ballot.options);
+				System.out.println(participantPort + " > Message: " + message + " sent to: " + socket.getPort());
+				if(message.round > 0) // gossip messages are not part of a round
+				{
+					message.ballot.sent[slot] = message.round;
+					message.ballot.barrier.arrive(message.round);
+				}
+			}
+			staged.clear();
 		}
 	}
 
 	private class ParticipantListener extends Thread
 	{
 		private final Socket socket; // the socket of the participant this thread is handling
-		private final BufferedReader in; // receive messages from the participant
-
-		private int thisPort; // the port of the participant this thread is handling
-		private String thisVote; // the vote chosen by the participant this thread is handling
-
-		private boolean done;
+		private final BufferedInputStream input; // receive messages from the participant, read as text or frames depending on its first byte
+		private final BufferedReader in; // receive text messages from the participant
+		private final DataInputStream data; // receive binary frames from the participant
+		private final int slot; // the position of this listener's entries in each ballot
+		private volatile boolean running = true; // false once the listener has stopped
+		private final PhiAccrualDetector arrivals = new PhiAccrualDetector(timeout); // the intervals between the peer's messages
+		private volatile boolean suspected; // the round loop suspected the peer of crashing and closed the connection
 
+		private volatile int thisPort; // the port of the participant this thread is handling
+		private volatile boolean done; // the participant has sent GOSSIP_DONE or the connection has ended
+		private volatile int gossipReplied; // the latest gossip round the peer has replied to a push in
+		private int[] messagePorts = new int[participants.size() + 1]; // the ports of the votes in the message being read, reused for every message
+		private int[] messageOptions = new int[participants.size() + 1]; // the options of those votes
+		private int messageCount; // the number of votes in the message being read
+		private final int[] header = new int[2]; // the fields before the votes in the message being read, reused for every message
+		private boolean[] pushed; // the votes in the last GOSSIP push, by participant index
+		private int[] replyPorts; // the ports of the votes to reply to a GOSSIP push with
+		private int[] replyOptions; // the options of those votes
 
 		/**
 		 * Handles incoming messages from other participants
 		 * @param socket The socket of the connection
+		 * @param slot The position of this listener's entries in each ballot
 		 * @throws IOException
 		 */
-		public ParticipantListener(Socket socket) throws IOException
+		public ParticipantListener(Socket socket, int slot) throws IOException
 		{
-			this.done = false;
 			this.socket = socket;
+			this.slot = slot;
 			socket.setSoLinger(true, 0);
-			this.in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+			socket.setSoTimeout(peerHeartbeatSilence()); // the peer's writer sends heartbeats while it has nothing else to send
+			this.input = new BufferedInputStream(socket.getInputStream());
+			this.in = new BufferedReader(new InputStreamReader(input));
+			this.data = new DataInputStream(input);
 		}
 
 		@Override
 		public void run()
 		{
-			String line;
-			String[] input;
-			while (true)
+			try
 			{
-				try
+				boolean binary = WireProtocol.isBinary(WireProtocol.peek(input));
+				ByteBuffer frame = null;
+				while(multipleBallots || gossip || election.received[slot] < maxRounds) // ballots and gossip are not bounded by the rounds, so read until the peer closes
 				{
-					if(!done && round == 1) // the first round
+					if(binary)
 					{
-						line = in.readLine();
-
-						if(line != null)
+						frame = WireProtocol.readFrame(data, frame);
+						if(frame == null)
 						{
-							input = line.split(" ");
-							if(input[0].equals("VOTE"))
-							{
-								thisPort = Integer.parseInt(input[1]);
-								thisVote = input[2];
-								synchronized(newVotes)
-								{
-									newVotes.put(thisPort, thisVote);
-								}
-								List<Vote> messageVotes = new ArrayList<>();
-								messageVotes.add(new Vote(thisPort, thisVote));
-								logger.votesReceived(thisPort, messageVotes);
-								System.out.println(participantPort + " > Received vote: " + thisVote + " from: " + thisPort);
-								done = true;
-							}
-							else
-							{
-								throw new WrongMessageException("VOTE", input[0]);
-							}
+							break;
 						}
+						receiveVotes(frame);
 					}
-					else if(!done && round <= maxRounds) // successive rounds
+					else
 					{
-						line = in.readLine();
-
-						if(line != null)
+						String line = in.readLine();
+						if(line == null)
 						{
-							input = line.split(" ");
-
-							if(input[0].equals("VOTE"))
-							{
-								List<Vote> messageVotes = new ArrayList<>();
-
-								for(int i = 1; i < input.length; i++)
-								{
-									synchronized(newVotes)
-									{
-										if(!newVotes.containsKey(Integer.parseInt(input[i])))
-										{
-											newVotes.put(Integer.parseInt(input[i]), input[i + 1]);
-										}
-									}
-									messageVotes.add(new Vote(Integer.parseInt(input[i]), input[i + 1]));
-									System.out.println(participantPort + " > Received vote: " + input[i] + " -> " + input[i + 1] + thisPort);
-									i += 2;
-								}
-
-								logger.votesReceived(thisPort, messageVotes);
-
-							}
-							else
-							{
-								throw new WrongMessageException("VOTE", input[0]);
-							}
+							break;
 						}
-						done = true;
-
+						receiveVotes(line);
 					}
-					else if(round > maxRounds) // all rounds are complete
+				}
+				if(sharedConnections) // wait for the other side to finish writing so closing the socket cannot discard anything
+				{
+					socket.setSoTimeout(timeout);
+					try
 					{
-						System.out.println(participantPort + " > Finished listening from: " + socket.getPort());
-						socket.close();
-						in.close();
-						break;
+						while(input.read() != -1);
 					}
-					else
+					catch(IOException e)
 					{
-						Thread.sleep(timeout);
+						// the other side resets the connection once it has read everything, which is expected here
 					}
 				}
-				catch(IOException | WrongMessageException | InterruptedException e)
+				System.out.println(participantPort + " > Finished listening from: " + socket.getPort());
+			}
+			catch(SocketTimeoutException e)
+			{
+				if(!closeExpected())
+				{
+					suspect("nothing received for " + peerHeartbeatSilence() + "ms");
+				}
+			}
+			catch(SocketException e)
+			{
+				if(!closeExpected() && !suspected)
+				{
+					metrics.peerSuspected();
+					e.printStackTrace();
+				}
+			}
+			catch(IOException | WrongMessageException | InterruptedException e)
+			{
+				e.printStackTrace();
+			}
+			finally
+			{
+				running = false;
+				for(Ballot ballot : openBallots())
+				{
+					ballot.barrier.leave(ballot.received[slot] + 1);
+				}
+				gossipDone();
+				try
+				{
+					in.close();
+					socket.close();
+				}
+				catch(IOException e)
 				{
 					e.printStackTrace();
+				}
+			}
+		}
+
+		/**
+		 * Suspects the peer of crashing if it has sent nothing for a round for so long that phi has passed the threshold,
+		 * closing the connection so the listener leaves every ballot's barrier as it would for a crash
+		 * @param round The round being waited for
+		 * @param roundStart System.nanoTime() when it began, time spent before then waiting on other peers does not count
+		 * @return System.nanoTime() when the peer is to be suspected if nothing arrives first, or Long.MAX_VALUE if it
+		 *         has been suspected or the detector has nothing to go on yet
+		 */
+		long suspectIfStalled(int round, long roundStart)
+		{
+			long after = arrivals.suspectAfter();
+			if(suspected || after == Long.MAX_VALUE)
+			{
+				return Long.MAX_VALUE;
+			}
+			long now = System.nanoTime();
+			long since = Math.max(arrivals.lastHeartbeat(), roundStart);
+			if(now - since < after)
+			{
+				return since + after;
+			}
+			suspect("nothing received in round " + round + " for " + (now - since) / 1_000_000 + "ms, phi "
+			        + String.format("%.1f", arrivals.phi(now - since)));
+			return Long.MAX_VALUE;
+		}
+
+		/**
+		 * @param since System.nanoTime() from when silence counts
+		 * @return true if the peer has sent nothing since then for so long that phi has passed the threshold, or for the
+		 *         timeout while the detector has nothing to go on; the connection is left open, a late message still counts
+		 */
+		boolean stalled(long since)
+		{
+			long silent = System.nanoTime() - Math.max(arrivals.lastHeartbeat(), since);
+			return silent >= Math.min(arrivals.suspectAfter(), timeout * 1_000_000L);
+		}
+
+		/**
+		 * Takes the peer to have crashed and closes the connection, the listener then leaves every ballot's barrier
+		 * @param reason Why, for the console
+		 */
+		private synchronized void suspect(String reason)
+		{
+			if(suspected)
+			{
+				return;
+			}
+			suspected = true;
+			metrics.peerSuspected();
+			logger.participantCrashed(thisPort);
+			System.out.println(participantPort + " > Suspecting " + thisPort + " has crashed, " + reason);
+			try
+			{
+				socket.close();
+			}
+			catch(IOException e)
+			{
+				e.printStackTrace();
+			}
+		}
+
+		/**
+		 * @return true if the participant may have reset the connection without crashing: it knew every vote and skipped
+		 *         the remaining rounds, it finished gossiping or it has finished its ballots
+		 */
+		private boolean closeExpected()
+		{
+			return done || (election != null && election.completeFrom.get(slot) != 0) || (multipleBallots && openBallots().isEmpty());
+		}
+
+		/**
+		 * Records the votes in a text VOTE, BALLOT_VOTE or GOSSIP message
+		 * @param line The message received
+		 */
+		private void receiveVotes(String line) throws WrongMessageException, InterruptedException
+		{
+			arrivals.heartbeat(System.nanoTime());
+			String[] input = line.split(" ");
+			byte type = WireProtocol.typeOf(input[0]);
+			if(type == WireProtocol.HEARTBEAT)
+			{
+				metrics.received(type, line.length() + 1);
+				return;
+			}
+			int fields = headerLength(type);
+			if(fields == -1)
+			{
+				throw new WrongMessageException("VOTE", input[0]);
+			}
+			metrics.received(type, line.length() + 1);
+			for(int i = 0; i < fields; i++)
+			{
+				header[i] = Integer.parseInt(input[1 + i]);
+			}
+			Ballot ballot = ballotFor(type, header);
+			if(ballot == null) // the ballot has already finished here
+			{
+				return;
+			}
+			int round = ballot.received[slot] + 1;
+			boolean first = round == 1 && isRound(type); // the first vote of the first round is the sender's own
+
+			messageCount = 0;
+			for(int i = 1 + fields; i + 1 < input.length; i += 2)
+			{
+				Integer option = ballot.optionIndices.get(input[i + 1]);
+				if(option == null)
+				{
+					throw new WrongMessageException("one of " + ballot.options, input[i + 1]);
+				}
+				receiveVote(ballot, Integer.parseInt(input[i]), option, first && i == 1 + fields);
+			}
+			received(ballot, type, header, round);
+		}
+
+		/**
+		 * Records the votes in a binary VOTE, BALLOT_VOTE or GOSSIP frame
+		 * @param frame The frame positioned at its message type
+		 */
+		private void receiveVotes(ByteBuffer frame) throws WrongMessageException, InterruptedException
+		{
+			arrivals.heartbeat(System.nanoTime());
+			byte type = frame.get();
+			if(type == WireProtocol.HEARTBEAT)
+			{
+				metrics.received(type, 4 + frame.limit());
+				return;
+			}
+			int fields = headerLength(type);
+			if(fields == -1)
+			{
+				throw new WrongMessageException("VOTE", "frame type " + type);
+			}
+			metrics.received(type, 4 + frame.limit());
+			for(int i = 0; i < fields; i++)
+			{
+				header[i] = frame.getInt();
+			}
+			Ballot ballot = ballotFor(type, header);
+			if(ballot == null) // the ballot has already finished here
+			{
+				return;
+			}
+			int round = ballot.received[slot] + 1;
+			boolean first = round == 1 && isRound(type); // the first vote of the first round is the sender's own
+
+			int count = frame.getInt();
+			messageCount = 0;
+			for(int i = 0; i < count; i++)
+			{
+				int port = frame.getInt();
+				int option = WireProtocol.getOptionIndex(frame);
+				if(option >= ballot.options.size())
+				{
+					throw new WrongMessageException("an option index below " + ballot.options.size(), Integer.toString(option));
+				}
+				receiveVote(ballot, port, option, first && i == 0);
+			}
+			received(ballot, type, header, round);
+		}
+
+		/**
+		 * @return the number of fields before the votes in a message of the given type, -1 if it is not one a peer may send
+		 */
+		private int headerLength(byte type)
+		{
+			switch(type)
+			{
+				case WireProtocol.VOTE:
+				case WireProtocol.VOTE_COMPLETE:
+					return 0;
+				case WireProtocol.BALLOT_VOTE:
+				case WireProtocol.BALLOT_VOTE_COMPLETE:
+					return 1; // ballot
+				case WireProtocol.GOSSIP:
+				case WireProtocol.GOSSIP_REPLY:
+				case WireProtocol.GOSSIP_DONE:
+					return 2; // round, sender
+				default:
+					return -1;
+			}
+		}
+
+		/**
+		 * @return true for the messages each peer sends exactly one of per round
+		 */
+		private boolean isRound(byte type)
+		{
+			return type == WireProtocol.VOTE || type == WireProtocol.VOTE_COMPLETE || type == WireProtocol.BALLOT_VOTE || type == WireProtocol.BALLOT_VOTE_COMPLETE;
+		}
+
+		/**
+		 * @return the ballot a message belongs to, or null if it is a numbered ballot that has already finished here
+		 */
+		private Ballot ballotFor(byte type, int[] header) throws WrongMessageException, InterruptedException
+		{
+			if(type == WireProtocol.BALLOT_VOTE || type == WireProtocol.BALLOT_VOTE_COMPLETE)
+			{
+				return numberedBallot(header[0]);
+			}
+			if(election == null)
+			{
+				throw new WrongMessageException("BALLOT_VOTE", WireProtocol.nameOf(type));
+			}
+			return election;
+		}
+
+		/**
+		 * Acts on a message once its votes have been recorded
+		 */
+		private void received(Ballot ballot, byte type, int[] header, int round) throws InterruptedException
+		{
+			if(!isRound(type))
+			{
+				thisPort = header[1];
+			}
+			logger.votesReceived(thisPort, messagePorts, messageOptions, messageCount, ballot.options);
+			switch(type)
+			{
+				case WireProtocol.VOTE_COMPLETE:
+				case WireProtocol.BALLOT_VOTE_COMPLETE:
+					ballot.completeFrom.compareAndSet(slot, 0, round);
+					ballot.received[slot] = round;
+					ballot.barrier.arrive(round);
+					break;
+				case WireProtocol.VOTE:
+				case WireProtocol.BALLOT_VOTE:
+					ballot.received[slot] = round;
+					ballot.barrier.arrive(round);
+					break;
+				case WireProtocol.GOSSIP: // pull: reply with everything the push did not include
+					VoteTable votes = ballot.votes;
+					if(pushed == null)
+					{
+						pushed = new boolean[votes.size()];
+						replyPorts = new int[votes.size()];
+						replyOptions = new int[votes.size()];
+					}
+					Arrays.fill(pushed, false);
+					for(int i = 0; i < messageCount; i++)
+					{
+						pushed[votes.indexOf(messagePorts[i])] = true;
+					}
+					int count = 0;
+					for(int index = 0; index < votes.size(); index++)
+					{
+						int option = votes.option(index);
+						if(option != -1 && !pushed[index])
+						{
+							replyPorts[count] = votes.portAt(index);
+							replyOptions[count] = option;
+							count += 1;
+						}
+					}
+					ParticipantWriter writer = writerFor(socket, thisPort);
+					if(writer != null)
+					{
+						writer.send(new RoundMessage(ballot, 0, WireProtocol.GOSSIP_REPLY, new int[]{header[0], participantPort}, replyPorts, replyOptions, count));
+					}
 					break;
+				case WireProtocol.GOSSIP_REPLY:
+					gossipReplied = header[0];
+					if(header[0] == gossipRound) // a late reply to an earlier round has nothing left to release
+					{
+						gossipReplies.countDown();
+					}
+					break;
+				case WireProtocol.GOSSIP_DONE:
+					gossipDone();
+					break;
+			}
+		}
+
+		private void gossipDone()
+		{
+			if(!done && peersDone != null)
+			{
+				done = true;
+				peersDone.countDown();
+			}
+		}
+
+		/**
+		 * @param option The index of the option voted for
+		 */
+		private void receiveVote(Ballot ballot, int port, int option, boolean own) throws WrongMessageException
+		{
+			int index = ballot.votes.indexOf(port);
+			if(index == -1)
+			{
+				throw new WrongMessageException("one of " + participants, Integer.toString(port));
+			}
+			if(own)
+			{
+				thisPort = port;
+			}
+			ballot.votes.record(index, option);
+			if(messageCount == messagePorts.length) // only a peer repeating votes sends more than there are participants
+			{
+				messagePorts = Arrays.copyOf(messagePorts, 2 * messageCount);
+				messageOptions = Arrays.copyOf(messageOptions, 2 * messageCount);
+			}
+			messagePorts[messageCount] = port;
+			messageOptions[messageCount] = option;
+			messageCount += 1;
+			System.out.println(ballot.prefix() + "Received vote: " + port + " -> " + ballot.options.get(option) + " from: " + thisPort);
+		}
+	}
+
+	/**
+	 * The state of one election: its options, the votes collected for it and the rounds exchanging them. A coordinator
+	 * following the coursework protocol runs a single election, ballot 0, whose messages carry no ballot id. One running
+	 * numbered ballots sends BALLOT_OPTIONS for each of them and several can be in progress over the same connections.
+	 */
+	private class Ballot extends Thread
+	{
+		private final int id; // 0 for the single election of the coursework protocol
+		private final List<String> options; // list of vote options, in the order the coordinator sent them, votes are indices into it
+		private final Map<String, Integer> optionIndices = new HashMap<>(); // position of each option in the options, used to read text VOTE messages
+		private final int vote; // index of the vote of this participant
+		private final VoteTable votes; // the vote of every participant, recorded by the listeners and merged at the end of each round
+		private final int[] roundPorts; // the ports of the votes to send this round, reused every round
+		private final int[] roundOptions; // the options of the votes to send this round
+		private final int[] sent; // the last round each writer has sent, by writer slot, only touched by that writer
+		private final int[] received; // the number of rounds each listener has received, by listener slot, only written by that listener
+		private final AtomicIntegerArray completeFrom; // the first round each listener's participant sent VOTE_COMPLETE in, 0 if it has not
+		private RoundBarrier barrier; // releases each round once every peer's writer and listener has finished it
+		private int winningVote; // index of the winning option
+
+		/**
+		 * @param id The ballot id, 0 for the single election
+		 * @param options The vote options sent by the coordinator
+		 */
+		Ballot(int id, List<String> options)
+		{
+			this.id = id;
+			this.options = options;
+			for(int i = 0; i < options.size(); i++)
+			{
+				optionIndices.put(options.get(i), i);
+			}
+			votes = new VoteTable(participantPort, participants, options);
+			roundPorts = new int[votes.size()];
+			roundOptions = new int[votes.size()];
+			sent = new int[participants.size()];
+			received = new int[participants.size()];
+			completeFrom = new AtomicIntegerArray(participants.size());
+
+			// Choose option and add it to the table
+			vote = new Random().nextInt(options.size());
+			votes.record(votes.indexOf(participantPort), vote);
+			System.out.println(prefix() + "Selected vote: " + options.get(vote));
+		}
+
+		/**
+		 * Runs a numbered ballot on its own worker and reports its outcome
+		 */
+		@Override
+		public void run()
+		{
+			try
+			{
+				executeRounds();
+				decideOutcome();
+				reportOutcome(this);
+			}
+			catch(InterruptedException e)
+			{
+				e.printStackTrace();
+			}
+			finally
+			{
+				synchronized(ballots)
+				{
+					ballots.remove(id);
+					ballots.notifyAll();
 				}
 			}
 		}
 
-		public boolean isDone()
+		/**
+		 * Exchanges votes with every peer until every vote is known or the rounds run out
+		 * @throws InterruptedException if the thread is interrupted
+		 */
+		void executeRounds() throws InterruptedException
 		{
-			return done;
+			int count = votes.merge(roundPorts, roundOptions); // the votes to send out this round, this participant's own
+			for(int i = 1; i < count; i++) // and any peer's already received for a numbered ballot, the receivers take the first vote of round 1 as the sender's
+			{
+				if(roundPorts[i] == participantPort)
+				{
+					roundPorts[i] = roundPorts[0];
+					roundPorts[0] = participantPort;
+					int option = roundOptions[i];
+					roundOptions[i] = roundOptions[0];
+					roundOptions[0] = option;
+				}
+			}
+			for(int round = 1; round <= maxRounds; round++)
+			{
+				logger.beginRound(round);
+				long roundStart = System.nanoTime();
+				System.out.println(prefix() + "Round start : " + round);
+
+				boolean complete = votes.isComplete(); // this participant knows every vote
+				sendToAll(new RoundMessage(this, round, roundPorts, roundOptions, count, complete));
+
+				if(!awaitRound(round, roundStart)) // the timeout only bounds how long we wait for a crashed peer
+				{
+					System.out.println(prefix() + "Round " + round + " timed out waiting for peers");
+				}
+
+				count = votes.merge(roundPorts, roundOptions);
+				logger.endRound(round);
+				roundDurations.record(System.nanoTime() - roundStart);
+				System.out.println(prefix() + "Round complete: " + round);
+				printLeader();
+				if(complete && allPeersComplete(round))
+				{
+					System.out.println(prefix() + "Every participant knows every vote, skipping rounds " + (round + 1) + " to " + maxRounds);
+					break;
+				}
+			}
 		}
 
-		public void readyUp()
+		/**
+		 * Waits for every writer and listener to arrive at a round, suspecting the peers that stall on the way
+		 * @param roundStart System.nanoTime() when the round began
+		 * @return true if every party arrived or left, false if the timeout elapsed first
+		 */
+		private boolean awaitRound(int round, long roundStart) throws InterruptedException
 		{
-			done = false;
+			long deadline = roundStart + timeout * 1_000_000L;
+			while(true)
+			{
+				long wake = deadline;
+				List<ParticipantListener> listeners;
+				synchronized(participantReadSockets)
+				{
+					listeners = new ArrayList<>(participantReadSockets.keySet());
+				}
+				for(ParticipantListener listener : listeners)
+				{
+					if(listener.running && received[listener.slot] < round)
+					{
+						wake = Math.min(wake, listener.suspectIfStalled(round, roundStart));
+					}
+				}
+				long wait = wake - System.nanoTime();
+				if(barrier.await(round, Math.max(0, (wait + 999_999) / 1_000_000)))
+				{
+					return true;
+				}
+				if(System.nanoTime() >= deadline)
+				{
+					return false;
+				}
+			}
+		}
+
+		/**
+		 * @param round The round that has just ended
+		 * @return true if every peer said it knew every vote in its message for the round, which a crashed peer cannot have done
+		 */
+		private boolean allPeersComplete(int round)
+		{
+			int complete = 0;
+			for(int slot = 0; slot < completeFrom.length(); slot++)
+			{
+				int from = completeFrom.get(slot);
+				if(from != 0 && from <= round)
+				{
+					complete += 1;
+				}
+			}
+			return complete == participants.size();
+		}
+
+		/**
+		 * Decides on the winning option
+		 */
+		void decideOutcome()
+		{
+			// 5. DECIDE ON OUTCOME using majority <- draw = first option according to ascendant lexicographic order of tied options
+			//    the votes are tallied as they are merged at the end of each round so the leader is already known
+			winningVote = votes.leader();
+
+			logger.outcomeDecided(options.get(winningVote), votes.knownPorts());
+		}
+
+		/**
+		 * Reports the provisional outcome from the votes merged so far
+		 */
+		void printLeader()
+		{
+			int leader = votes.leader();
+			System.out.println(prefix() + "Leading: " + options.get(leader) + " with " + votes.tally(leader) + " of " + votes.knownCount() + " votes known");
+		}
+
+		void printVotes()
+		{
+			System.out.println(prefix() + "Votes collected:");
+			for(int index = 0; index < votes.size(); index++)
+			{
+				if(votes.isKnown(index))
+				{
+					System.out.println(votes.portAt(index) + " -> " + options.get(votes.option(index)));
+				}
+			}
+		}
+
+		/**
+		 * @return the start of this ballot's console output
+		 */
+		String prefix()
+		{
+			return participantPort + " > " + (id == 0 ? "" : "Ballot " + id + " > ");
+		}
+	}
+
+	/**
+	 * The votes sent to every peer in one round, the text is built once and shared by all of the writers
+	 */
+	private static class RoundMessage
+	{
+		static final RoundMessage CLOSE = new RoundMessage(null, 0, WireProtocol.VOTE, new int[0], new int[0], new int[0], 0); // tells a writer that all rounds are complete
+
+		final Ballot ballot; // the ballot the message belongs to, null for CLOSE
+		final int round;
+		final byte type;
+		final String text; // the text message, null when sending binary frames
+		final ByteBuffer bytes; // the message as written, a binary frame or a text line, encoded once for every writer
+		final int[] ports; // the ports of the votes sent, for the logger
+		final int[] options; // the options of those votes
+		final int count; // the number of votes sent
+
+		/**
+		 * @param ballot The ballot the message belongs to
+		 * @param round The round the message is for
+		 * @param ports The ports of the participants whose votes are being sent, only read by the constructor
+		 * @param indices The index of the option each of them voted for, only read by the constructor
+		 * @param count The number of votes to take from the arrays
+		 * @param complete true if the sender knows the vote of every participant
+		 */
+		RoundMessage(Ballot ballot, int round, int[] ports, int[] indices, int count, boolean complete)
+		{
+			this(ballot, round, voteType(ballot.id, complete), ballot.id == 0 ? new int[0] : new int[]{ballot.id}, ports, indices, count);
+		}
+
+		/**
+		 * @param ballot The ballot the message belongs to
+		 * @param round The round the message is for, 0 for gossip messages which the round barrier does not track
+		 * @param type The message type, one of the VOTE, BALLOT_VOTE or GOSSIP types
+		 * @param header The fields sent before the votes, the ballot for BALLOT_VOTE and the round and sender for gossip messages
+		 * @param ports The ports of the participants whose votes are being sent, only read by the constructor
+		 * @param indices The index of the option each of them voted for, only read by the constructor
+		 * @param count The number of votes to take from the arrays
+		 */
+		RoundMessage(Ballot ballot, int round, byte type, int[] header, int[] ports, int[] indices, int count)
+		{
+			this.ballot = ballot;
+			this.round = round;
+			this.type = type;
+			this.ports = Arrays.copyOf(ports, count);
+			this.options = Arrays.copyOf(indices, count);
+			this.count = count;
+			if(WireProtocol.isEnabled())
+			{
+				this.bytes = WireProtocol.encodeVotes(type, header, ports, indices, count);
+				this.text = null;
+			}
+			else
+			{
+				StringBuilder message = new StringBuilder(WireProtocol.nameOf(type));
+				for(int field : header)
+				{
+					message.append(" ").append(field);
+				}
+				for(int i = 0; i < count; i++)
+				{
+					message.append(" ").append(ports[i]).append(" ").append(ballot.options.get(indices[i]));
+				}
+				this.text = message.toString();
+				this.bytes = WireProtocol.encodeLine(text);
+			}
+		}
+
+		private static byte voteType(int ballot, boolean complete)
+		{
+			if(ballot == 0)
+			{
+				return complete ? WireProtocol.VOTE_COMPLETE : WireProtocol.VOTE;
+			}
+			return complete ? WireProtocol.BALLOT_VOTE_COMPLETE : WireProtocol.BALLOT_VOTE;
+		}
+
+		@Override
+		public String toString()
+		{
+			return text != null ? text : WireProtocol.nameOf(type) + " frame of " + count + " votes";
+		}
+	}
+
+	/**
+	 * Lets the round loop wait until every writer has sent and every listener has received its message for a round.
+	 * A party that crashes or finishes early leaves the barrier so no one waits for it.
+	 */
+	private static class RoundBarrier
+	{
+		private final CountDownLatch[] latches; // latches[r] is released when every party has arrived at round r
+
+		RoundBarrier(int rounds, int parties)
+		{
+			latches = new CountDownLatch[rounds + 1];
+			for(int r = 1; r <= rounds; r++)
+			{
+				latches[r] = new CountDownLatch(parties);
+			}
+		}
+
+		/**
+		 * @param round The round the calling party has just completed
+		 */
+		void arrive(int round)
+		{
+			if(round > 0 && round < latches.length)
+			{
+				latches[round].countDown();
+			}
+		}
+
+		/**
+		 * Releases every round from the given one onwards on behalf of a party that will not arrive
+		 * @param fromRound The first round the party has not arrived at
+		 */
+		void leave(int fromRound)
+		{
+			for(int r = Math.max(1, fromRound); r < latches.length; r++)
+			{
+				latches[r].countDown();
+			}
+		}
+
+		/**
+		 * @return true if every party arrived, false if the timeout elapsed first
+		 */
+		boolean await(int round, long timeout) throws InterruptedException
+		{
+			return latches[round].await(timeout, TimeUnit.MILLISECONDS);
 		}
 	}
 
@@ -602,18 +1961,39 @@ public class Participant extends Thread
 		}
 	}
 
+	/**
+	 * Joins, takes part in the election or the numbered ballots the coordinator runs and reports their outcomes
+	 */
+	void participate() throws IOException, WrongMessageException, InterruptedException
+	{
+		registerWithCoordinator();
+		listenForDetails();
+		Ballot ballot = listenForVoteOptions();
+		if(ballot == null)
+		{
+			throw new IOException("Connection to the coordinator closed");
+		}
+		if(ballot.id == 0)
+		{
+			election = ballot;
+			executeRounds();
+			ballot.decideOutcome();
+			informCoordinator();
+		}
+		else
+		{
+			runBallots(ballot);
+		}
+		System.out.println(participantPort + " > Done");
+	}
+
 	public static void main(String[] args)
 	{
 		try
 		{
 			Participant participant = new Participant(args);
-			participant.registerWithCoordinator();
-			participant.listenForDetails();
-			participant.listenForVoteOptions();
-			participant.executeRounds();
-			participant.decideOutcome();
-			participant.informCoordinator();
-			System.out.println(participant.participantPort + " > Done");
+			participant.participate();
+			Workers.joinAll();
 		}
 		catch(Coordinator.ArgumentQuantityException | IOException | WrongMessageException | InterruptedException e)
 		{
@@ -1,15 +1,16 @@
 import java.io.IOException;
-import java.io.PrintStream;
 import java.util.List;
-import java.util.stream.Collectors;
 
 public class ParticipantLogger {
 	
 	private static ParticipantLogger logger = null;
 	
-	private final PrintStream ps;
+	private final LogFile logFile; // written by its own thread, null when events are logged in binary
+	private final EventLog events; // null unless -Dlogger.format=binary
+	private volatile int round; // the round last begun, recorded with every event
 	private final UDPLoggerClient udpLoggerClient;
 	private final int thisParticipant;
+	private final ThreadLocal<StringBuilder> lines = ThreadLocal.withInitial(() -> new StringBuilder(256)); // reused by each thread to build its lines, so logging creates no garbage
 	
 	/**
 	 * Initialises the Logger for this Participant
@@ -35,20 +36,64 @@ public class ParticipantLogger {
 		return logger;
 	}
 	
+	/**
+	 * A logger that writes nothing, for Participants simulated in one JVM, subclasses override the events they need
+	 * 
+	 * @param processId the ID of the process, i.e. the port it is listening on
+	 */
+	protected ParticipantLogger(int processId) {
+		thisParticipant = processId;
+		udpLoggerClient = null;
+		logFile = null;
+		events = null;
+	}
+	
 	private ParticipantLogger(int loggerServerPort, int processId, int timeout) throws IOException {
 		thisParticipant = processId;
 		udpLoggerClient = new UDPLoggerClient(loggerServerPort, processId, timeout);
-		ps = new PrintStream("participant_" + thisParticipant + "_" + System.currentTimeMillis() + ".log");
+		if (EventLog.BINARY) {
+			events = new EventLog("participant_" + thisParticipant + "_" + System.currentTimeMillis() + ".events", 'P', processId);
+			logFile = null;
+		} else {
+			events = null;
+			logFile = new LogFile("participant_" + thisParticipant + "_" + System.currentTimeMillis() + ".log");
+		}
 	}
 	
-	protected void logMessage(String message) {
-		ps.println(message);
+	/**
+	 * @return this thread's line builder, emptied and started with the tag of this Participant
+	 */
+	private StringBuilder line() {
+		StringBuilder line = lines.get();
+		line.setLength(0);
+		return line.append("[P").append(thisParticipant).append("] ");
+	}
+
+	/**
+	 * @return the bytes of log messages waiting to be written to the local log or sent to the Logger
+	 */
+	public long queuedBytes() {
+		long queued = udpLoggerClient != null ? udpLoggerClient.getQueuedBytes() : 0;
+		if (logFile != null)
+			queued += logFile.queuedBytes();
+		if (events != null)
+			queued += events.queuedBytes();
+		return queued;
+	}
+
+	protected void logMessage(CharSequence message) {
+		if (logFile != null)
+			logFile.println(message);
 		if (udpLoggerClient != null)
 			try {
 				udpLoggerClient.logToServer(message);
 			} catch (IOException e) {
-				ps.println("[P" + thisParticipant + "] Exception caught: " + e.getMessage());
-				ps.println("[P" + thisParticipant + "] Stack trace: " + e.getStackTrace());
+				if (events != null) {
+					events.start(EventLog.EXCEPTION, round).putString(e.getMessage()).write();
+					return;
+				}
+				logFile.println(line().append("Exception caught: ").append(e.getMessage()));
+				logFile.println(line().append("Stack trace: ").append(e.getStackTrace()));
 			}
 	}
 
@@ -58,7 +103,9 @@ public class ParticipantLogger {
 	 * @param coordinatorId the ID of the Coordinator, i.e. the port where the Coordinator is listening on
 	 */
 	public void joinSent(int coordinatorId) {
-		logMessage("[P" + thisParticipant + "] JOIN sent to Coordinator on port " + coordinatorId);
+		if (events != null)
+			events.start(EventLog.JOIN_SENT, round).putInt(coordinatorId).write();
+		logMessage(line().append("JOIN sent to Coordinator on port ").append(coordinatorId));
 	}
 	
 	/**
@@ -67,7 +114,9 @@ public class ParticipantLogger {
 	 * @param participantIds the list of Participant IDs 
 	 */
 	public void detailsReceived(List<Integer> participantIds) {
-		logMessage("[P" + thisParticipant + "] received participant ports: " + participantIds.stream().map(Object::toString).collect(Collectors.joining(", ")));
+		if (events != null)
+			events.start(EventLog.DETAILS_RECEIVED, round).putInts(participantIds).write();
+		logMessage(appendAll(line().append("received participant ports: "), participantIds));
 	}
 	
 	/**
@@ -76,7 +125,9 @@ public class ParticipantLogger {
 	 * @param votingOptions the list of voting options
 	 */
 	public void voteOptionsReceived(List<String> votingOptions) {
-		logMessage("[P" + thisParticipant + "] received vote options: " + votingOptions.stream().map(Object::toString).collect(Collectors.joining(", ")));
+		if (events != null)
+			events.start(EventLog.VOTE_OPTIONS_RECEIVED, round).putStrings(votingOptions).write();
+		logMessage(appendAll(line().append("received vote options: "), votingOptions));
 	}
 	
 	/**
@@ -85,7 +136,10 @@ public class ParticipantLogger {
 	 * @param round the number of the new round, e.g. 1 for the first round, 2 for the second and so on
 	 */
 	public void beginRound(int round) {
-		logMessage("[P" + thisParticipant + "] begin round " + round);
+		this.round = round;
+		if (events != null)
+			events.start(EventLog.BEGIN_ROUND, round).write();
+		logMessage(line().append("begin round ").append(round));
 	}
 	
 	/**
@@ -94,7 +148,9 @@ public class ParticipantLogger {
 	 * @param round the number of the round, e.g. 1 for the first round, 2 for the second and so on
 	 */
 	public void endRound(int round) {
-		logMessage("[P" + thisParticipant + "] end round " + round);
+		if (events != null)
+			events.start(EventLog.END_ROUND, round).write();
+		logMessage(line().append("end round ").append(round));
 	}
 	
 	/**
@@ -104,7 +160,9 @@ public class ParticipantLogger {
 	 * @param votes the list of votes sent
 	 */
 	public void votesSent(int destinationParticipantId, List<Vote> votes) {
-		logMessage("[P" + thisParticipant + "] votes sent to " + destinationParticipantId + ": " + votes.stream().map(Object::toString).collect(Collectors.joining(", ")));
+		if (events != null)
+			events.start(EventLog.VOTES_SENT, round).putInt(destinationParticipantId).putVotes(votes).write();
+		logMessage(appendAll(line().append("votes sent to ").append(destinationParticipantId).append(": "), votes));
 	}
 	
 	/**
@@ -114,7 +172,39 @@ public class ParticipantLogger {
 	 * @param votes the list of votes received
 	 */
 	public void votesReceived(int senderParticipantId, List<Vote> votes) {
-		logMessage("[P" + thisParticipant + "] votes received from " + senderParticipantId + ": " + votes.stream().map(Object::toString).collect(Collectors.joining(", ")));
+		if (events != null)
+			events.start(EventLog.VOTES_RECEIVED, round).putInt(senderParticipantId).putVotes(votes).write();
+		logMessage(appendAll(line().append("votes received from ").append(senderParticipantId).append(": "), votes));
+	}
+	
+	/**
+	 * As votesSent, for votes held as ports and option indices, without creating any objects
+	 * 
+	 * @param destinationParticipantId the ID of the other Participant, the port where the Participant is listening on
+	 * @param ports the ports of the Participants whose votes were sent
+	 * @param options the index of the option each of them voted for
+	 * @param count the number of votes in the arrays
+	 * @param optionNames the voting options the indices refer to
+	 */
+	public void votesSent(int destinationParticipantId, int[] ports, int[] options, int count, List<String> optionNames) {
+		if (events != null)
+			events.start(EventLog.VOTES_SENT, round).putInt(destinationParticipantId).putVotes(events.table(optionNames), ports, options, count).write();
+		logMessage(appendVotes(line().append("votes sent to ").append(destinationParticipantId).append(": "), ports, options, count, optionNames));
+	}
+	
+	/**
+	 * As votesReceived, for votes held as ports and option indices, without creating any objects
+	 * 
+	 * @param senderParticipantId the ID of the other Participant, the port where the Participant is listening on
+	 * @param ports the ports of the Participants whose votes were received
+	 * @param options the index of the option each of them voted for
+	 * @param count the number of votes in the arrays
+	 * @param optionNames the voting options the indices refer to
+	 */
+	public void votesReceived(int senderParticipantId, int[] ports, int[] options, int count, List<String> optionNames) {
+		if (events != null)
+			events.start(EventLog.VOTES_RECEIVED, round).putInt(senderParticipantId).putVotes(events.table(optionNames), ports, options, count).write();
+		logMessage(appendVotes(line().append("votes received from ").append(senderParticipantId).append(": "), ports, options, count, optionNames));
 	}
 	
 	/**
@@ -124,7 +214,9 @@ public class ParticipantLogger {
 	 * @param participantIds the list of IDs of Participants that were taken into account in settling the vote
 	 */
 	public void outcomeDecided(String vote, List<Integer> participantIds) {
-		logMessage("[P" + thisParticipant + "] outcome vote decided: " + vote + "(based on votes of Participants " + participantIds.stream().map(Object::toString).collect(Collectors.joining(", ")) + ")");
+		if (events != null)
+			events.start(EventLog.OUTCOME_DECIDED, round).putString(vote).putInts(participantIds).write();
+		logMessage(appendAll(line().append("outcome vote decided: ").append(vote).append("(based on votes of Participants "), participantIds).append(")"));
 	}
 	
 	/**
@@ -134,7 +226,9 @@ public class ParticipantLogger {
 	 * @param participantIds the list of IDs of Participants that were taken into account in settling the vote
 	 */
 	public void outcomeNotified(String vote, List<Integer> participantIds) {
-		logMessage("[P" + thisParticipant + "] outcome vote sent to Coordinator: " + vote + "(based on votes of Participants " + participantIds.stream().map(Object::toString).collect(Collectors.joining(", ")) + ")");
+		if (events != null)
+			events.start(EventLog.OUTCOME_NOTIFIED, round).putString(vote).putInts(participantIds).write();
+		logMessage(appendAll(line().append("outcome vote sent to Coordinator: ").append(vote).append("(based on votes of Participants "), participantIds).append(")"));
 	}
 	
 	/**
@@ -144,14 +238,18 @@ public class ParticipantLogger {
 	 * @param crashedParticipantId the ID of the crashed Participant, i.e. the port where the crashed Participant was listening on
 	 */
 	public void participantCrashed(int crashedParticipantId) {
-		logMessage("[P" + thisParticipant + "] participant crashed: " + crashedParticipantId);
+		if (events != null)
+			events.start(EventLog.PARTICIPANT_CRASHED, round).putInt(crashedParticipantId).write();
+		logMessage(line().append("participant crashed: ").append(crashedParticipantId));
 	}
 	
 	/**
 	 * To be invoked when this Participant starts listening for incoming TCP connections
 	 */
 	public void startedListening() {
-		logMessage("[P" + thisParticipant + "] started listening on port " + thisParticipant);
+		if (events != null)
+			events.start(EventLog.STARTED_LISTENING, round).putInt(thisParticipant).write();
+		logMessage(line().append("started listening on port ").append(thisParticipant));
 	}
 	
 	/**
@@ -160,7 +258,9 @@ public class ParticipantLogger {
 	 * @param otherPort the remote port number to which this socket is connected; note that this is different from the ID of the other Participant
 	 */
 	public void connectionAccepted(int otherPort) {
-		logMessage("[P" + thisParticipant + "] accepted connection from port " + otherPort);
+		if (events != null)
+			events.start(EventLog.CONNECTION_ACCEPTED, round).putInt(otherPort).write();
+		logMessage(line().append("accepted connection from port ").append(otherPort));
 	}
 	
 	/**
@@ -169,7 +269,9 @@ public class ParticipantLogger {
 	 * @param otherPort the TCP port where the other process is listening on
 	 */
 	public void connectionEstablished(int otherPort) {
-		logMessage("[P" + thisParticipant + "] connection established to port " + otherPort);
+		if (events != null)
+			events.start(EventLog.CONNECTION_ESTABLISHED, round).putInt(otherPort).write();
+		logMessage(line().append("connection established to port ").append(otherPort));
 	}
 	
 	/**
@@ -179,7 +281,9 @@ public class ParticipantLogger {
 	 * @param message the message sent
 	 */
 	public void messageSent(int destinationPort, String message) {
-		logMessage("[P" + thisParticipant + "] message sent to " + destinationPort + ": \"" + message + "\"");
+		if (events != null)
+			events.start(EventLog.MESSAGE_SENT, round).putInt(destinationPort).putString(message).write();
+		logMessage(line().append("message sent to ").append(destinationPort).append(": \"").append(message).append('"'));
 	}
 	
 	/**
@@ -189,6 +293,36 @@ public class ParticipantLogger {
 	 * @param message the received message
 	 */
 	public void messageReceived(int senderPort, String message) {
-		logMessage("[P" + thisParticipant + "] message received from " + senderPort + ": \"" + message + "\"");
+		if (events != null)
+			events.start(EventLog.MESSAGE_RECEIVED, round).putInt(senderPort).putString(message).write();
+		logMessage(line().append("message received from ").append(senderPort).append(": \"").append(message).append('"'));
+	}
+	
+	/**
+	 * Appends the items of a list separated by ", "
+	 */
+	private static StringBuilder appendAll(StringBuilder line, List<?> items) {
+		for (int i = 0; i < items.size(); i++) {
+			if (i > 0)
+				line.append(", ");
+			Object item = items.get(i);
+			if (item instanceof Integer)
+				line.append(((Integer) item).intValue()); // as digits, append(Object) would make a String of it first
+			else
+				line.append(item);
+		}
+		return line;
+	}
+	
+	/**
+	 * Appends votes in the same form as Vote.toString, separated by ", "
+	 */
+	private static StringBuilder appendVotes(StringBuilder line, int[] ports, int[] options, int count, List<String> optionNames) {
+		for (int i = 0; i < count; i++) {
+			if (i > 0)
+				line.append(", ");
+			line.append('<').append(ports[i]).append(", ").append(optionNames.get(options[i])).append('>');
+		}
+		return line;
 	}
 }
@@ -0,0 +1,120 @@
+/**
+ * A phi accrual failure detector over one stream of arrivals, after Hayashibara et al. It keeps a window of the
+ * intervals between arrivals and, given how long it has been since the last one, computes phi = -log10(P(the next
+ * arrival is still to come)) under a normal distribution fitted to the window. A peer is suspected once phi passes a
+ * threshold, so the wait before suspecting it follows the intervals actually seen rather than a fixed timeout.
+ *
+ * - -Dfailure.phi=<threshold> is the phi at which a peer is suspected (default 8, a false suspicion about once in 10^8)
+ * - -Dfailure.minStdDev=<ms> is the least standard deviation assumed, so a run of very regular arrivals does not make
+ *   the detector suspect a peer the moment it is late (default a tenth of the timeout)
+ * - -Dfailure.detector=timeout suspects no one, every wait runs to the fixed timeout as before
+ *
+ * Until it has seen MIN_SAMPLES intervals the detector has nothing to go on and suspects no one, leaving the fixed
+ * timeout to bound the wait.
+ */
+public class PhiAccrualDetector
+{
+	static final boolean ENABLED = !"timeout".equals(System.getProperty("failure.detector"));
+	private static final double THRESHOLD = Double.parseDouble(System.getProperty("failure.phi", "8"));
+	private static final int WINDOW = 100; // the intervals kept, older ones are forgotten
+	private static final int MIN_SAMPLES = 2;
+
+	private final long minStdDev; // in nanoseconds
+	private final long[] intervals = new long[WINDOW]; // a ring of the latest intervals in nanoseconds
+	private int count; // the number of intervals in the ring
+	private int next; // where the next interval goes
+	private double sum; // of the intervals in the ring
+	private double sumOfSquares;
+	private long last; // System.nanoTime() of the latest arrival, 0 before the first
+
+	/**
+	 * @param timeout The fixed timeout in milliseconds, the default least standard deviation is a tenth of it
+	 */
+	PhiAccrualDetector(int timeout)
+	{
+		this.minStdDev = Long.getLong("failure.minStdDev", Math.max(1, timeout / 10)) * 1_000_000;
+	}
+
+	/**
+	 * Records an arrival, and the interval since the previous one
+	 * @param now System.nanoTime() when it arrived
+	 */
+	synchronized void heartbeat(long now)
+	{
+		if(last != 0)
+		{
+			sample(now - last);
+		}
+		last = now;
+	}
+
+	private void sample(long interval)
+	{
+		if(count == WINDOW)
+		{
+			sum -= intervals[next];
+			sumOfSquares -= (double) intervals[next] * intervals[next];
+		}
+		else
+		{
+			count += 1;
+		}
+		intervals[next] = interval;
+		sum += interval;
+		sumOfSquares += (double) interval * interval;
+		next = (next + 1) % WINDOW;
+	}
+
+	/**
+	 * @return System.nanoTime() of the latest arrival, 0 before the first
+	 */
+	synchronized long lastHeartbeat()
+	{
+		return last;
+	}
+
+	/**
+	 * @param elapsed The nanoseconds since the latest arrival, or since the arrival was due to be waited for
+	 * @return phi, 0 until there are enough intervals to go on
+	 */
+	synchronized double phi(long elapsed)
+	{
+		if(count < MIN_SAMPLES)
+		{
+			return 0;
+		}
+		double mean = sum / count;
+		double y = (elapsed - mean) / stdDev(mean);
+		double e = Math.exp(-y * (1.5976 + 0.070566 * y * y)); // the logistic approximation of the normal distribution
+		return elapsed > mean ? -Math.log10(e / (1 + e)) : -Math.log10(1 - 1 / (1 + e));
+	}
+
+	/**
+	 * @return the nanoseconds since the latest arrival after which phi passes the threshold, Long.MAX_VALUE until
+	 *         there are enough intervals to go on
+	 */
+	synchronized long suspectAfter()
+	{
+		if(!ENABLED || count < MIN_SAMPLES)
+		{
+			return Long.MAX_VALUE;
+		}
+		// phi passes the threshold where y * (1.5976 + 0.070566 * y^2) = ln((1 - p) / p) for p = 10^-threshold,
+		// the cubic is increasing and convex above its root, so Newton's method converges on it from this start above it
+		double p = Math.pow(10, -THRESHOLD);
+		double k = Math.log((1 - p) / p);
+		double y = k / 1.5976;
+		for(int i = 0; i < 10; i++)
+		{
+			y -= (0.070566 * y * y * y + 1.5976 * y - k) / (3 * 0.070566 * y * y + 1.5976);
+		}
+		double mean = sum / count;
+		return (long) Math.max(0, mean + y * stdDev(mean));
+	}
+
+	private double stdDev(double mean)
+	{
+		double variance = Math.max(0, sumOfSquares / count - mean * mean);
+		return Math.max(minStdDev, Math.sqrt(variance));
+	}
+}
@@ -0,0 +1,311 @@
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs a Coordinator and its Participants in this JVM, connected by an InMemoryNetwork instead of TCP, so elections
+ * with many participants can be benchmarked and checked without a process and real ports for each:
+ *
+ *   java Simulator <parts> <timeout> [options...]
+ *
+ * - -Dsimulator.elections=<n> runs n elections one after another, each on a fresh network (default 1)
+ * - -Dsimulator.crash=<count>@<round> crashes that many participants as they begin the round, e.g. 2@1: they stop
+ *   accepting, every connection they have is reset and their threads are interrupted
+ * - -Dsimulator.verbose=true keeps the console output of the processes, which is otherwise discarded
+ *
+ * Every other option applies as it does to separate processes, except -Dcoordinator.mode=nio which needs real
+ * sockets. Nothing is logged, the simulated loggers only count the events the report needs.
+ */
+public class Simulator
+{
+	private static final int COORDINATOR_PORT = 10000; // the participants listen on the ports after it
+
+	private final int parts;
+	private final int timeout;
+	private final String[] options;
+	private final int ballots = Integer.getInteger("coordinator.ballots", 1);
+	private final int crashes; // the number of participants to crash
+	private final int crashRound; // the round they crash in
+
+	private Simulator(String[] args) throws Coordinator.ArgumentQuantityException
+	{
+		if(args.length < 3)
+		{
+			throw new Coordinator.ArgumentQuantityException(args);
+		}
+		this.parts = Integer.parseInt(args[0]);
+		this.timeout = Integer.parseInt(args[1]);
+		this.options = Arrays.copyOfRange(args, 2, args.length);
+		String[] crash = System.getProperty("simulator.crash", "0@0").split("@");
+		this.crashes = Math.min(parts, Integer.parseInt(crash[0]));
+		this.crashRound = Integer.parseInt(crash[1]);
+	}
+
+	/**
+	 * Runs one election to the end
+	 * @return what happened
+	 */
+	private Result runElection() throws Exception
+	{
+		InMemoryNetwork network = new InMemoryNetwork();
+		SimulatedCoordinatorLogger coordinatorLogger = new SimulatedCoordinatorLogger();
+		String[] coordinatorArgs = new String[4 + options.length];
+		coordinatorArgs[0] = Integer.toString(COORDINATOR_PORT);
+		coordinatorArgs[1] = "0"; // nothing is sent to a logger
+		coordinatorArgs[2] = Integer.toString(parts);
+		coordinatorArgs[3] = Integer.toString(timeout);
+		System.arraycopy(options, 0, coordinatorArgs, 4, options.length);
+		Coordinator coordinator = new Coordinator(coordinatorArgs, network.transport(COORDINATOR_PORT), coordinatorLogger);
+
+		long start = System.nanoTime();
+		Thread coordinatorThread = new Thread(() -> {
+			try
+			{
+				coordinator.coordinate();
+			}
+			catch(Exception e)
+			{
+				e.printStackTrace();
+			}
+		}, "Coordinator");
+		coordinatorThread.start();
+
+		CountDownLatch finished = new CountDownLatch(parts);
+		List<SimulatedParticipantLogger> loggers = new ArrayList<>();
+		for(int i = 1; i <= parts; i++)
+		{
+			int port = COORDINATOR_PORT + i;
+			ThreadGroup group = new ThreadGroup("Participant " + port); // every thread it starts joins the group, so a crash can interrupt them
+			SimulatedParticipantLogger logger = new SimulatedParticipantLogger(port, i <= crashes ? crashRound : 0, network, group);
+			loggers.add(logger);
+			String[] participantArgs = {Integer.toString(COORDINATOR_PORT), "0", Integer.toString(port), Integer.toString(timeout)};
+			new Thread(group, () -> {
+				try
+				{
+					new Participant(participantArgs, network.transport(port), logger).participate();
+				}
+				catch(SimulatedCrash e)
+				{
+					// the participant has gone
+				}
+				catch(Exception e)
+				{
+					if(!logger.crashed)
+					{
+						e.printStackTrace();
+					}
+				}
+				finally
+				{
+					finished.countDown();
+				}
+			}, "Participant " + port).start();
+		}
+
+		Result result = new Result();
+		long deadline = (long) (parts + 2) * timeout * ballots; // far longer than any election that is not stuck
+		result.finished = finished.await(deadline, TimeUnit.MILLISECONDS);
+		result.participantsMillis = (System.nanoTime() - start) / 1_000_000;
+		int crashed = 0;
+		for(SimulatedParticipantLogger logger : loggers)
+		{
+			crashed += logger.crashed ? 1 : 0;
+		}
+		int expected = ballots * (parts - crashed);
+		long end = System.currentTimeMillis() + timeout; // the outcomes that have been sent are all delivered by then
+		while(coordinatorLogger.outcomes.get() < expected && System.currentTimeMillis() < end)
+		{
+			Thread.sleep(1);
+		}
+		result.coordinatorMillis = (System.nanoTime() - start) / 1_000_000;
+		result.outcomesReceived = coordinatorLogger.outcomes.get();
+		result.outcomesExpected = expected;
+		result.crashesDetected = coordinatorLogger.crashes.get();
+		result.crashed = crashed;
+		for(SimulatedParticipantLogger logger : loggers)
+		{
+			result.rounds = Math.max(result.rounds, logger.maxRound);
+			result.messages += logger.messages.sum();
+			if(!logger.crashed)
+			{
+				for(String decision : logger.decisions)
+				{
+					result.decisions.merge(decision, 1, Integer::sum);
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * What happened in one election
+	 */
+	private static class Result
+	{
+		boolean finished; // every participant finished before the deadline
+		long participantsMillis; // from the coordinator starting until every participant finished
+		long coordinatorMillis; // until the coordinator had every outcome it was going to get
+		int rounds; // the most rounds any participant began
+		long messages; // the vote messages sent between participants
+		int crashed;
+		int crashesDetected; // by the coordinator
+		int outcomesReceived; // by the coordinator
+		int outcomesExpected; // from the participants that did not crash
+		Map<String, Integer> decisions = new HashMap<>(); // the number of participants that decided each outcome
+
+		@Override
+		public String toString()
+		{
+			return (finished ? "" : "DID NOT FINISH ") + participantsMillis + "ms, decided at the coordinator in " + coordinatorMillis
+			       + "ms, " + rounds + " rounds, " + messages + " vote messages, decisions " + decisions + ", coordinator received "
+			       + outcomesReceived + "/" + outcomesExpected + " outcomes, " + crashed + " crashed, " + crashesDetected + " crashes detected";
+		}
+	}
+
+	/**
+	 * Thrown on the round thread of a participant to crash it
+	 */
+	private static class SimulatedCrash extends RuntimeException
+	{
+		private static final long serialVersionUID = 1L;
+
+		SimulatedCrash()
+		{
+			super("simulated crash", null, false, false);
+		}
+	}
+
+	/**
+	 * Counts the events of a participant, crashing it as it begins its crash round
+	 */
+	private static class SimulatedParticipantLogger extends ParticipantLogger
+	{
+		private final int port;
+		private final int crashRound; // 0 to never crash
+		private final InMemoryNetwork network;
+		private final ThreadGroup group;
+		private volatile boolean crashed;
+		private volatile int maxRound;
+		private final LongAdder messages = new LongAdder(); // counted by the writers of every peer
+		private final List<String> decisions = Collections.synchronizedList(new ArrayList<>());
+
+		SimulatedParticipantLogger(int port, int crashRound, InMemoryNetwork network, ThreadGroup group)
+		{
+			super(port);
+			this.port = port;
+			this.crashRound = crashRound;
+			this.network = network;
+			this.group = group;
+		}
+
+		@Override
+		public void beginRound(int round)
+		{
+			if(round == crashRound && !crashed)
+			{
+				crashed = true;
+				network.crash(port);
+				group.interrupt();
+			}
+			if(crashed)
+			{
+				throw new SimulatedCrash();
+			}
+			maxRound = Math.max(maxRound, round);
+			super.beginRound(round);
+		}
+
+		@Override
+		public void votesSent(int destinationParticipantId, int[] ports, int[] options, int count, List<String> optionNames)
+		{
+			messages.increment();
+			super.votesSent(destinationParticipantId, ports, options, count, optionNames);
+		}
+
+		@Override
+		public void outcomeDecided(String vote, List<Integer> participantIds)
+		{
+			decisions.add(vote);
+			super.outcomeDecided(vote, participantIds);
+		}
+	}
+
+	/**
+	 * Counts the outcomes the coordinator receives and the crashes it detects
+	 */
+	private static class SimulatedCoordinatorLogger extends CoordinatorLogger
+	{
+		private final AtomicInteger outcomes = new AtomicInteger();
+		private final AtomicInteger crashes = new AtomicInteger();
+
+		@Override
+		public void outcomeReceived(int participantId, String vote)
+		{
+			outcomes.incrementAndGet();
+			super.outcomeReceived(participantId, vote);
+		}
+
+		@Override
+		public void participantCrashed(int crashedParticipantId)
+		{
+			crashes.incrementAndGet();
+			super.participantCrashed(crashedParticipantId);
+		}
+	}
+
+	public static void main(String[] args)
+	{
+		PrintStream console = System.out;
+		PrintStream errors = System.err; // uncaught exceptions are still reported when the processes' own output is discarded
+		try
+		{
+			Simulator simulator = new Simulator(args);
+			if("nio".equals(System.getProperty("coordinator.mode")))
+			{
+				console.println("Simulator > coordinator.mode=nio needs real sockets, simulating a thread per participant");
+			}
+			if(!Boolean.getBoolean("simulator.verbose"))
+			{
+				PrintStream discard = new PrintStream(OutputStream.nullOutputStream());
+				System.setOut(discard);
+				System.setErr(discard);
+			}
+			Thread.setDefaultUncaughtExceptionHandler((thread, e) -> {
+				if(!(e instanceof SimulatedCrash)) // ballots crash on their own threads
+				{
+					errors.print("Exception in thread \"" + thread.getName() + "\" ");
+					e.printStackTrace(errors);
+				}
+			});
+
+			int elections = Integer.getInteger("simulator.elections", 1);
+			long[] millis = new long[elections];
+			for(int i = 0; i < elections; i++)
+			{
+				Result result = simulator.runElection();
+				millis[i] = result.coordinatorMillis;
+				console.println("Simulator > Election " + (i + 1) + ": " + simulator.parts + " participants, " + result);
+			}
+			if(elections > 1)
+			{
+				Arrays.sort(millis);
+				console.println("Simulator > " + elections + " elections, decided at the coordinator in p50 " + millis[elections / 2] + "ms, p95 "
+				                + millis[(int) Math.ceil(elections * 0.95) - 1] + "ms, max " + millis[elections - 1] + "ms");
+			}
+		}
+		catch(Exception e)
+		{
+			e.printStackTrace(console);
+		}
+		System.exit(0); // a process that crashed may leave threads blocked behind
+	}
+}
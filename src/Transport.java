@@ -0,0 +1,36 @@
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * How the Coordinator and Participants open their connections: TCP on localhost when they run as processes, or the
+ * in-memory connections of an InMemoryNetwork when a whole cluster is simulated in one JVM
+ */
+interface Transport
+{
+	Transport TCP = new Transport()
+	{
+		@Override
+		public Socket connect(int port) throws IOException
+		{
+			return new Socket("localhost", port);
+		}
+
+		@Override
+		public ServerSocket listen(int port) throws IOException
+		{
+			return new ServerSocket(port);
+		}
+	};
+
+	/**
+	 * Opens a connection to the process listening on a port
+	 * @throws java.net.ConnectException if nothing is listening on the port yet
+	 */
+	Socket connect(int port) throws IOException;
+
+	/**
+	 * Starts listening for connections on a port
+	 */
+	ServerSocket listen(int port) throws IOException;
+}
@@ -1,22 +1,61 @@
 import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Ships log messages to the Logger process without holding up the caller. logToServer only copies the message into a
+ * bounded LineBuffer, dropping it if the buffer is full, and a background thread sends the buffered messages over a
+ * DatagramChannel, packing as many lines as fit into each datagram. Every datagram is numbered and resent until the
+ * Logger acknowledges it, giving up after MAX_ATTEMPTS waits of the client's timeout.
+ *
+ * A datagram holds a header line "processId session sequence" followed by one "timestamp message" line per log message,
+ * the Logger answers with "ACK sequence". The session is picked at random by each client and the sequence starts at 1
+ * in each session, so the Logger can tell a process run again on the same port from a resend. A line never spans two
+ * datagrams, one too long for a datagram of its own is cut to fit and the rest of it dropped.
+ */
 public class UDPLoggerClient {
-	
+
+	static final int CAPACITY = Integer.getInteger("logger.buffer", 512 * 1024); // -Dlogger.buffer=<bytes> of messages held before new ones are dropped
+	static final int MAX_DATAGRAM = 8192; // lines are packed into a datagram until it would exceed this many bytes
+	static final int MAX_ATTEMPTS = 3; // sends of a datagram before it is given up on
+
 	private final int loggerServerPort;
 	private final int processId;
 	private final int timeout;
 
+	private final LineBuffer messages = new LineBuffer(CAPACITY); // "timestamp message" lines waiting to be sent
+	private final AtomicLong dropped = new AtomicLong(); // messages rejected because the buffer was full
+	private final AtomicLong lost = new AtomicLong(); // messages in datagrams the Logger never acknowledged
+	private final AtomicLong cut = new AtomicLong(); // messages too long for a datagram, sent without their end
+
+	private volatile Thread sender; // started by the first message
+	private DatagramChannel channel;
+	private Selector selector;
+	private final ByteBuffer datagram = ByteBuffer.allocate(65507); // the largest UDP payload, a single oversized line is cut to fit
+	private final ByteBuffer ack = ByteBuffer.allocate(64);
+	private final int session = ThreadLocalRandom.current().nextInt(Integer.MAX_VALUE); // tells this run's datagrams from those of an earlier one
+	private int sequence; // the number of the datagram being sent
+	private volatile boolean sending; // set before a datagram is packed, cleared once it is acknowledged or given up on
+	private volatile int inFlight; // the messages in that datagram
+
 	/**
 	 * @param loggerServerPort the UDP port where the Logger process is listening o
 	 * @param processId the ID of the Participant/Coordinator, i.e. the TCP port where the Participant/Coordinator is listening on
-	 * @param timeout the timeout in milliseconds for this process 
+	 * @param timeout the timeout in milliseconds for this process
 	 */
 	public UDPLoggerClient(int loggerServerPort, int processId, int timeout) {
 		this.loggerServerPort = loggerServerPort;
 		this.processId = processId;
 		this.timeout = timeout;
 	}
-	
+
 	public int getLoggerServerPort() {
 		return loggerServerPort;
 	}
@@ -24,20 +63,175 @@ public class UDPLoggerClient {
 	public int getProcessId() {
 		return processId;
 	}
-	
+
 	public int getTimeout() {
 		return timeout;
 	}
 
 	/**
-	 * Sends a log message to the Logger process
-	 * 
+	 * @return the number of messages dropped because the buffer was full
+	 */
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	/**
+	 * @return the number of messages the Logger never acknowledged
+	 */
+	public long getLost() {
+		return lost.get();
+	}
+
+	/**
+	 * @return the number of bytes of messages waiting to be sent
+	 */
+	public long getQueuedBytes() {
+		return messages.size();
+	}
+
+	/**
+	 * Queues a log message to be sent to the Logger process, never blocks on the network. The message is copied so a
+	 * StringBuilder can be reused straight away.
+	 *
 	 * @param message the log message
-	 * @throws IOException
+	 * @throws IOException if the channel to the Logger cannot be opened
+	 */
+	public void logToServer(CharSequence message) throws IOException {
+		if (sender == null)
+			start();
+		if (!messages.add(System.currentTimeMillis(), message))
+			dropped.incrementAndGet();
+	}
+
+	private synchronized void start() throws IOException {
+		if (sender != null)
+			return;
+		channel = DatagramChannel.open();
+		channel.connect(new InetSocketAddress("localhost", loggerServerPort));
+		channel.configureBlocking(false);
+		selector = Selector.open();
+		channel.register(selector, SelectionKey.OP_READ);
+
+		sender = new Thread(this::sendLoop, "UDPLoggerClient");
+		sender.setDaemon(true); // logging never keeps the process alive, the shutdown hook drains what it can
+		sender.start();
+		Runtime.getRuntime().addShutdownHook(new Thread(this::drain));
+	}
+
+	/**
+	 * Sends the buffered messages until the process exits
+	 */
+	private void sendLoop() {
+		try {
+			while (true) {
+				int count = pack();
+				if (!send())
+					lost.addAndGet(count);
+				synchronized (this) {
+					inFlight = 0;
+					sending = false;
+					notifyAll();
+				}
+			}
+		} catch (InterruptedException e) {
+			// the process is exiting
+		}
+	}
+
+	/**
+	 * Waits for at least one message then fills the datagram with as many buffered messages as fit
+	 * @return the number of messages packed
+	 */
+	private int pack() throws InterruptedException {
+		messages.awaitLine();
+		sending = true; // before the messages leave the buffer, so drain always sees one or the other
+		datagram.clear();
+		datagram.put((processId + " " + session + " " + (++sequence) + "\n").getBytes(StandardCharsets.UTF_8));
+		int start = datagram.position();
+		datagram.limit(MAX_DATAGRAM);
+		if (messages.take(datagram, false) == 0) { // a single line longer than MAX_DATAGRAM goes on its own
+			datagram.limit(datagram.capacity() - 1); // room to end a line cut to fit
+			messages.take(datagram, true);
+			if (datagram.get(datagram.position() - 1) != '\n') { // cut, the rest is dropped rather than sent as a line without a timestamp
+				messages.skip();
+				int end = datagram.position();
+				while ((datagram.get(end - 1) & 0xC0) == 0x80) // back to the start of the last character, which may be incomplete
+					end--;
+				if ((datagram.get(end - 1) & 0xC0) == 0xC0)
+					end--;
+				datagram.limit(datagram.capacity());
+				datagram.position(end).put((byte) '\n');
+				cut.incrementAndGet();
+			}
+		}
+		int count = 0;
+		for (int i = start; i < datagram.position(); i++)
+			if (datagram.get(i) == '\n')
+				count++;
+		datagram.flip();
+		inFlight = count;
+		return count;
+	}
+
+	/**
+	 * Sends the packed datagram until it is acknowledged
+	 * @return true if the Logger acknowledged it
+	 */
+	private boolean send() throws InterruptedException {
+		String expected = "ACK " + sequence;
+		for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+			try {
+				channel.write(datagram.duplicate());
+				long deadline = System.currentTimeMillis() + timeout;
+				long remaining;
+				while ((remaining = deadline - System.currentTimeMillis()) > 0) {
+					if (selector.select(remaining) == 0)
+						continue;
+					selector.selectedKeys().clear();
+					ack.clear();
+					while (channel.read(ack) > 0) {
+						ack.flip();
+						if (expected.equals(StandardCharsets.UTF_8.decode(ack).toString().trim()))
+							return true;
+						ack.clear(); // an acknowledgement of an earlier attempt
+					}
+				}
+			} catch (PortUnreachableException e) {
+				Thread.sleep(timeout); // nothing is listening yet, give the Logger a chance to start
+			} catch (IOException e) {
+				return false;
+			}
+			if (Thread.interrupted())
+				throw new InterruptedException();
+		}
+		return false;
+	}
+
+	/**
+	 * Gives the sender up to the timeout to send what is left in the buffer, and have the last datagram acknowledged, as
+	 * the process exits. A datagram still unacknowledged then counts as lost.
 	 */
-	public void logToServer(String message) throws IOException {
-		
-		// YOUR IMPLEMENTATION HERE!!
-		
+	private void drain() {
+		long deadline = System.currentTimeMillis() + timeout;
+		long remaining;
+		while ((!messages.isEmpty() || sending) && (remaining = deadline - System.currentTimeMillis()) > 0) {
+			try {
+				if (!messages.isEmpty()) {
+					messages.awaitTake(remaining);
+				} else {
+					synchronized (this) {
+						if (sending)
+							wait(remaining);
+					}
+				}
+			} catch (InterruptedException e) {
+				break;
+			}
+		}
+		if (sending)
+			lost.addAndGet(inFlight);
+		if (dropped.get() > 0 || lost.get() > 0 || cut.get() > 0 || !messages.isEmpty())
+			System.out.println("UDPLoggerClient > " + dropped.get() + " log messages dropped, " + lost.get() + " not acknowledged, "
+			                   + cut.get() + " cut to fit a datagram, " + messages.size() + " bytes never sent");
 	}
 }
@@ -1,16 +1,431 @@
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Collects the log messages sent by each UDPLoggerClient. Every datagram is acknowledged with "ACK sequence" and its
+ * lines are appended, prefixed with the id of the process that sent them, to memory-mapped segment files
+ * logger_server_<start>_<n>.log. Alongside them logger_server_<start>.idx records where each run of lines from one
+ * process in one round is, so the events of a process in a round can be read back without scanning the segments:
+ *
+ *   java UDPLoggerServer port
+ *   java UDPLoggerServer query logger_server_<start> processId [round]
+ *
+ * A process is in round 0 until it logs "begin round n", and then in round n until it begins another. Resent datagrams
+ * and rounds are tracked per client session, so a process run again on the same port starts afresh.
+ */
 public class UDPLoggerServer
 {
+	private static final int SEGMENT_SIZE = Math.max(4096, Integer.getInteger("logger.segment", 64 << 20)); // -Dlogger.segment=<bytes> size of each segment file, at least 4KB
+	private static final int INDEX_ENTRY = 20; // segment, process, round, offset and length, 4 bytes each
+	private static final byte[] BEGIN_ROUND = " begin round ".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] ACK = "ACK ".getBytes(StandardCharsets.US_ASCII);
+
 	int port; // this logger server is listening on
 
+	private final String name; // the start of the segment and index file names
+	private DatagramChannel channel;
+	private Selector selector;
+	private final ByteBuffer datagram = ByteBuffer.allocateDirect(65536);
+	private final ByteBuffer ack = ByteBuffer.allocateDirect(32);
+	private final Map<SocketAddress, Session> sessions = new HashMap<>(); // the session of the client at each address
+
+	private MappedByteBuffer segment; // the segment being appended to
+	private int segmentNumber = -1;
+	private FileChannel index;
+	private final ByteBuffer indexBuffer = ByteBuffer.allocateDirect(INDEX_ENTRY * 4096); // index entries waiting to be written
+	private int rangeStart; // the offset in the segment of the run of lines being indexed
+	private long datagrams;
+	private long lines;
+	private long cut; // lines longer than a whole segment, stored without their end
+	private volatile boolean stopping;
+
+	/**
+	 * What is known of one run of a UDPLoggerClient, which picks a new session id each time it is created
+	 */
+	private static class Session
+	{
+		final int process;
+		final int id;
+		int lastSequence; // the last datagram stored, resent ones are only acknowledged
+		int round; // the round the process is in
+
+		Session(int process, int id)
+		{
+			this.process = process;
+			this.id = id;
+		}
+	}
+
 	public static void main(String[] args)
 	{
+		if(args.length >= 3 && args[0].equals("query"))
+		{
+			try
+			{
+				query(args[1], Integer.parseInt(args[2]), args.length > 3 ? Integer.parseInt(args[3]) : -1, System.out);
+			}
+			catch(IOException e)
+			{
+				e.printStackTrace();
+			}
+			return;
+		}
 		UDPLoggerServer loggerServer = new UDPLoggerServer(Integer.parseInt(args[0]));
+		loggerServer.run();
 	}
 
 	private UDPLoggerServer(int port)
 	{
 		this.port = port;
+		this.name = "logger_server_" + System.currentTimeMillis();
 
 		System.out.println("Running with P: " + this.port );
 	}
+
+	private void run()
+	{
+		Thread main = Thread.currentThread();
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			stopping = true;
+			selector.wakeup();
+			try
+			{
+				main.join(1000);
+			}
+			catch(InterruptedException e)
+			{
+				e.printStackTrace();
+			}
+		}));
+		try
+		{
+			channel = DatagramChannel.open();
+			channel.setOption(StandardSocketOptions.SO_RCVBUF, 8 << 20); // absorb bursts from many processes while a segment is being mapped
+			channel.bind(new InetSocketAddress(port));
+			channel.configureBlocking(false);
+			selector = Selector.open();
+			channel.register(selector, SelectionKey.OP_READ);
+			index = FileChannel.open(Paths.get(name + ".idx"), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+			nextSegment();
+			System.out.println("Logger > Listening on port " + port + ", writing " + name);
+
+			while(!stopping)
+			{
+				SocketAddress sender;
+				while((sender = channel.receive(datagram)) != null) // drain everything that has arrived before waiting again
+				{
+					datagram.flip();
+					receive(sender);
+					datagram.clear();
+				}
+				flushIndex(); // idle, so the index can be written out
+				selector.select();
+				selector.selectedKeys().clear();
+			}
+		}
+		catch(IOException e)
+		{
+			e.printStackTrace();
+		}
+		finally
+		{
+			close();
+		}
+	}
+
+	/**
+	 * Acknowledges a datagram and stores its lines unless it has already been stored
+	 * @param sender The address to send the acknowledgement to
+	 */
+	private void receive(SocketAddress sender) throws IOException
+	{
+		// header "processId session sequence\n"
+		int position = datagram.position();
+		int processEnd = indexOf(datagram, position, datagram.limit(), (byte) ' ');
+		int sessionEnd = processEnd < 0 ? -1 : indexOf(datagram, processEnd + 1, datagram.limit(), (byte) ' ');
+		int headerEnd = sessionEnd < 0 ? -1 : indexOf(datagram, sessionEnd + 1, datagram.limit(), (byte) '\n');
+		if(headerEnd < 0)
+		{
+			return; // not from a UDPLoggerClient
+		}
+		int process = parseInt(datagram, position, processEnd);
+		int sessionId = parseInt(datagram, processEnd + 1, sessionEnd);
+		int sequence = parseInt(datagram, sessionEnd + 1, headerEnd);
+
+		ack.clear();
+		ack.put(ACK);
+		for(int i = sessionEnd + 1; i < headerEnd; i++)
+		{
+			ack.put(datagram.get(i));
+		}
+		ack.flip();
+		channel.send(ack, sender);
+
+		Session session = sessions.get(sender);
+		if(session == null || session.id != sessionId || session.process != process) // a new run, whose sequence starts again at 1
+		{
+			sessions.values().removeIf(earlier -> earlier.process == process); // an earlier run of the process, from another port
+			session = new Session(process, sessionId);
+			sessions.put(sender, session);
+		}
+		if(sequence <= session.lastSequence) // a resend of a datagram whose acknowledgement was lost
+		{
+			return;
+		}
+		session.lastSequence = sequence;
+		datagrams++;
+
+		int round = session.round;
+		rangeStart = segment.position();
+		for(int start = headerEnd + 1; start < datagram.limit(); )
+		{
+			int end = indexOf(datagram, start, datagram.limit(), (byte) '\n');
+			end = end < 0 ? datagram.limit() : end;
+
+			int begin = indexOf(datagram, start, end, BEGIN_ROUND);
+			if(begin >= 0)
+			{
+				int next = parseInt(datagram, begin + BEGIN_ROUND.length, end);
+				if(next != round) // the lines so far belong to the previous round
+				{
+					addIndexEntry(process, round);
+					round = next;
+					session.round = round;
+				}
+			}
+
+			int prefix = (processEnd - position) + 1; // the process id and a space
+			int length = prefix + (end - start) + 1;
+			if(segment.remaining() < length && segment.position() > 0)
+			{
+				addIndexEntry(process, round);
+				nextSegment();
+			}
+			int stored = end;
+			if(segment.remaining() < length) // longer than a whole segment
+			{
+				stored = start + segment.remaining() - prefix - 1;
+				while(stored > start && (datagram.get(stored) & 0xC0) == 0x80) // not in the middle of a character
+				{
+					stored--;
+				}
+				cut++;
+			}
+			append(position, processEnd + 1);
+			append(start, stored);
+			segment.put((byte) '\n');
+			lines++;
+			start = end + 1;
+		}
+		addIndexEntry(process, round);
+	}
+
+	/**
+	 * Copies bytes of the datagram to the end of the segment
+	 */
+	private void append(int from, int to)
+	{
+		int limit = datagram.limit();
+		datagram.position(from).limit(to);
+		segment.put(datagram);
+		datagram.limit(limit);
+	}
+
+	/**
+	 * Indexes the lines appended since the last entry, if there are any
+	 */
+	private void addIndexEntry(int process, int round) throws IOException
+	{
+		if(segment.position() == rangeStart)
+		{
+			return;
+		}
+		if(indexBuffer.remaining() < INDEX_ENTRY)
+		{
+			flushIndex();
+		}
+		indexBuffer.putInt(segmentNumber).putInt(process).putInt(round).putInt(rangeStart).putInt(segment.position() - rangeStart);
+		rangeStart = segment.position();
+	}
+
+	private void flushIndex() throws IOException
+	{
+		indexBuffer.flip();
+		while(indexBuffer.hasRemaining())
+		{
+			index.write(indexBuffer);
+		}
+		indexBuffer.clear();
+	}
+
+	/**
+	 * Trims the full segment to what was written and maps the next one
+	 */
+	private void nextSegment() throws IOException
+	{
+		if(segment != null)
+		{
+			finishSegment();
+		}
+		segmentNumber++;
+		try(FileChannel file = FileChannel.open(segmentPath(name, segmentNumber), StandardOpenOption.CREATE, StandardOpenOption.READ,
+		                                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING))
+		{
+			segment = file.map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_SIZE); // the mapping stays valid once the channel is closed
+		}
+		rangeStart = 0;
+	}
+
+	private void finishSegment() throws IOException
+	{
+		segment.force();
+		try(FileChannel file = FileChannel.open(segmentPath(name, segmentNumber), StandardOpenOption.WRITE))
+		{
+			file.truncate(segment.position());
+		}
+	}
+
+	private void close()
+	{
+		try
+		{
+			if(segment != null)
+			{
+				finishSegment();
+			}
+			if(index != null)
+			{
+				flushIndex();
+				index.close();
+			}
+			if(channel != null)
+			{
+				channel.close();
+			}
+			System.out.println("Logger > Stored " + lines + " lines from " + datagrams + " datagrams" + (cut > 0 ? ", " + cut + " cut to fit a segment" : ""));
+		}
+		catch(IOException e)
+		{
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Prints the stored lines of a process, reading only the index and the ranges it points to
+	 * @param name The start of the file names, logger_server_<start>
+	 * @param process The id of the process
+	 * @param round The round to print, or -1 for every round
+	 * @param out Where to print the lines
+	 * @throws IOException if the files cannot be read
+	 */
+	static void query(String name, int process, int round, PrintStream out) throws IOException
+	{
+		ByteBuffer entries = ByteBuffer.wrap(Files.readAllBytes(Paths.get(name + ".idx")));
+		Map<Integer, FileChannel> segments = new HashMap<>();
+		try
+		{
+			while(entries.remaining() >= INDEX_ENTRY)
+			{
+				int segmentNumber = entries.getInt();
+				int entryProcess = entries.getInt();
+				int entryRound = entries.getInt();
+				int offset = entries.getInt();
+				int length = entries.getInt();
+				if(entryProcess != process || (round != -1 && entryRound != round))
+				{
+					continue;
+				}
+				FileChannel file = segments.get(segmentNumber);
+				if(file == null)
+				{
+					file = FileChannel.open(segmentPath(name, segmentNumber), StandardOpenOption.READ);
+					segments.put(segmentNumber, file);
+				}
+				ByteBuffer range = ByteBuffer.allocate(length);
+				while(range.hasRemaining() && file.read(range, offset + range.position()) >= 0);
+				out.print(new String(range.array(), 0, range.position(), StandardCharsets.UTF_8));
+			}
+		}
+		finally
+		{
+			for(FileChannel file : segments.values())
+			{
+				file.close();
+			}
+		}
+	}
+
+	private static Path segmentPath(String name, int segmentNumber)
+	{
+		return Paths.get(name + "_" + segmentNumber + ".log");
+	}
+
+	/**
+	 * @return the position of the first byte with a value in [from, to), or -1
+	 */
+	private static int indexOf(ByteBuffer buffer, int from, int to, byte value)
+	{
+		for(int i = from; i < to; i++)
+		{
+			if(buffer.get(i) == value)
+			{
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @return the position of the first occurrence of a pattern in [from, to), or -1
+	 */
+	private static int indexOf(ByteBuffer buffer, int from, int to, byte[] pattern)
+	{
+		search:
+		for(int i = from; i <= to - pattern.length; i++)
+		{
+			for(int j = 0; j < pattern.length; j++)
+			{
+				if(buffer.get(i + j) != pattern[j])
+				{
+					continue search;
+				}
+			}
+			return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * @return the decimal number starting at from, up to the first byte that is not a digit or to
+	 */
+	private static int parseInt(ByteBuffer buffer, int from, int to)
+	{
+		int value = 0;
+		for(int i = from; i < to; i++)
+		{
+			byte digit = buffer.get(i);
+			if(digit < '0' || digit > '9')
+			{
+				break;
+			}
+			value = value * 10 + (digit - '0');
+		}
+		return value;
+	}
 }
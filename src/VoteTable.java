@@ -0,0 +1,228 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The votes a participant knows of, held in arrays indexed by the position of each participant's port in sorted order.
+ * ParticipantListeners record votes concurrently without locking, and the round loop merges the votes recorded since the
+ * previous round into the known votes, extracting them as that round's delta without allocating. The merged votes are
+ * tallied as they are merged so the leading option is known at any point in the election.
+ */
+public class VoteTable
+{
+	private static final int NONE = -1; // the option of a participant whose vote has not been received
+
+	private final int[] ports; // the port of every participant including this one, sorted
+	private final AtomicIntegerArray options; // the option index each participant voted for, NONE if not received
+	private final AtomicLongArray fresh; // bitmap of the votes recorded since the last merge
+	private final long[] known; // bitmap of the merged votes, only used by the round loop
+	private int knownCount; // the number of bits set in known
+
+	private final int[] tally; // the number of merged votes for each option
+	private final int[] rank; // the position of each option in lexicographic order, ties go to the lowest
+	private int leader = NONE; // the option with the most merged votes
+
+	/**
+	 * @param port The port of this participant
+	 * @param peers The ports of the other participants
+	 * @param optionNames The options in VOTE_OPTIONS order, used to break ties
+	 */
+	VoteTable(int port, List<Integer> peers, List<String> optionNames)
+	{
+		ports = new int[peers.size() + 1];
+		ports[0] = port;
+		for(int i = 0; i < peers.size(); i++)
+		{
+			ports[i + 1] = peers.get(i);
+		}
+		Arrays.sort(ports);
+		options = new AtomicIntegerArray(ports.length);
+		for(int i = 0; i < ports.length; i++)
+		{
+			options.set(i, NONE);
+		}
+		fresh = new AtomicLongArray((ports.length + 63) >>> 6);
+		known = new long[fresh.length()];
+
+		tally = new int[optionNames.size()];
+		rank = new int[optionNames.size()];
+		Integer[] sorted = new Integer[optionNames.size()];
+		for(int i = 0; i < sorted.length; i++)
+		{
+			sorted[i] = i;
+		}
+		Arrays.sort(sorted, (a, b) -> optionNames.get(a).compareTo(optionNames.get(b)));
+		for(int i = 0; i < sorted.length; i++)
+		{
+			rank[sorted[i]] = i;
+		}
+	}
+
+	/**
+	 * @return the number of participants including this one
+	 */
+	int size()
+	{
+		return ports.length;
+	}
+
+	/**
+	 * @return the index of a participant's port, or -1 if it is not taking part
+	 */
+	int indexOf(int port)
+	{
+		int index = Arrays.binarySearch(ports, port);
+		return index < 0 ? -1 : index;
+	}
+
+	int portAt(int index)
+	{
+		return ports[index];
+	}
+
+	/**
+	 * @return the option the participant at an index voted for, or -1 if its vote has not been received
+	 */
+	int option(int index)
+	{
+		return options.get(index);
+	}
+
+	/**
+	 * Records a vote, the first one received for a participant is kept
+	 * @param index The index of the participant
+	 * @param option The index of the option it voted for
+	 * @return true if the vote was not already known
+	 */
+	boolean record(int index, int option)
+	{
+		if(!options.compareAndSet(index, NONE, option))
+		{
+			return false;
+		}
+		int word = index >>> 6;
+		long bit = 1L << index;
+		long bits;
+		do
+		{
+			bits = fresh.get(word);
+		}
+		while(!fresh.compareAndSet(word, bits, bits | bit));
+		return true;
+	}
+
+	/**
+	 * Moves the votes recorded since the last merge into the known votes, only called by the round loop
+	 * @param deltaPorts Filled with the ports of the participants whose votes were merged, at least size() long
+	 * @param deltaOptions Filled with the options they voted for
+	 * @return the number of votes merged
+	 */
+	int merge(int[] deltaPorts, int[] deltaOptions)
+	{
+		int count = 0;
+		for(int word = 0; word < known.length; word++)
+		{
+			long bits = fresh.getAndSet(word, 0);
+			known[word] |= bits;
+			knownCount += Long.bitCount(bits);
+			for(; bits != 0; bits &= bits - 1)
+			{
+				int index = (word << 6) + Long.numberOfTrailingZeros(bits);
+				deltaPorts[count] = ports[index];
+				deltaOptions[count] = options.get(index);
+				count(deltaOptions[count]);
+				count += 1;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Adds a merged vote to the tally. Counts only go up, so the option that has just been voted for is the only one
+	 * that can take the lead.
+	 */
+	private void count(int option)
+	{
+		tally[option] += 1;
+		if(leader == NONE || tally[option] > tally[leader] || (tally[option] == tally[leader] && rank[option] < rank[leader]))
+		{
+			leader = option;
+		}
+	}
+
+	/**
+	 * @return the option with the most merged votes, ties going to the lexicographically first, or -1 before any merge
+	 */
+	int leader()
+	{
+		return leader;
+	}
+
+	/**
+	 * @return the number of merged votes for an option
+	 */
+	int tally(int option)
+	{
+		return tally[option];
+	}
+
+	/**
+	 * Lists the known votes, only called by the round loop
+	 * @param knownPorts Filled with the ports of the participants whose votes are known, at least size() long
+	 * @param knownOptions Filled with the options they voted for
+	 * @return the number of known votes
+	 */
+	int known(int[] knownPorts, int[] knownOptions)
+	{
+		int count = 0;
+		for(int index = 0; index < ports.length; index++)
+		{
+			if(isKnown(index))
+			{
+				knownPorts[count] = ports[index];
+				knownOptions[count] = options.get(index);
+				count += 1;
+			}
+		}
+		return count;
+	}
+
+	boolean isKnown(int index)
+	{
+		return (known[index >>> 6] & (1L << index)) != 0;
+	}
+
+	/**
+	 * @return the number of merged votes
+	 */
+	int knownCount()
+	{
+		return knownCount;
+	}
+
+	/**
+	 * @return true if the vote of every participant has been merged
+	 */
+	boolean isComplete()
+	{
+		return knownCount == ports.length;
+	}
+
+	/**
+	 * @return the ports of the participants whose votes have been merged, in order
+	 */
+	List<Integer> knownPorts()
+	{
+		List<Integer> knownPorts = new ArrayList<>(knownCount);
+		for(int index = 0; index < ports.length; index++)
+		{
+			if(isKnown(index))
+			{
+				knownPorts.add(ports[index]);
+			}
+		}
+		return knownPorts;
+	}
+}
@@ -0,0 +1,384 @@
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * The binary alternative to the newline separated text messages, enabled for the messages a process sends with
+ * -Dwire.protocol=binary. Every frame is a 4 byte length followed by that many bytes holding a 1 byte message type
+ * and its payload:
+ *
+ *   JOIN         port
+ *   DETAILS      count, count x port
+ *   VOTE_OPTIONS count, count x (2 byte length, UTF-8 option)
+ *   VOTE         count, count x (port, 2 byte option index)
+ *   VOTE_COMPLETE as VOTE, sent once the sender knows the vote of every participant
+ *   OUTCOME      2 byte option index, count, count x port
+ *   GOSSIP       round, sender port, then as VOTE
+ *   GOSSIP_REPLY round, sender port, then as VOTE
+ *   GOSSIP_DONE  round, sender port, then as VOTE with every vote the sender knows
+ *   BALLOT_OPTIONS ballot, then as VOTE_OPTIONS
+ *   BALLOT_VOTE  ballot, then as VOTE
+ *   BALLOT_VOTE_COMPLETE ballot, then as VOTE
+ *   BALLOT_OUTCOME ballot, then as OUTCOME
+ *   HEARTBEAT    no payload, sent on a connection that has been idle for the heartbeat interval
+ *
+ * Ports, counts and ballot ids are 4 bytes and option indices refer to the order of the options in VOTE_OPTIONS, or
+ * BALLOT_OPTIONS for the ballot. The BALLOT messages are the forms of VOTE_OPTIONS, VOTE, VOTE_COMPLETE and OUTCOME
+ * used when a coordinator runs numbered ballots; text BALLOT messages have the ballot id as their first field.
+ * Frames are limited to 16MB so the first byte of a frame is always 0, which no text message starts with;
+ * receivers use this to pick the protocol of each connection from the first byte they read.
+ */
+public class WireProtocol
+{
+	static final byte JOIN = 1;
+	static final byte DETAILS = 2;
+	static final byte VOTE_OPTIONS = 3;
+	static final byte VOTE = 4;
+	static final byte OUTCOME = 5;
+	static final byte VOTE_COMPLETE = 6;
+	static final byte GOSSIP = 7;
+	static final byte GOSSIP_REPLY = 8;
+	static final byte GOSSIP_DONE = 9;
+	static final byte BALLOT_OPTIONS = 10;
+	static final byte BALLOT_VOTE = 11;
+	static final byte BALLOT_VOTE_COMPLETE = 12;
+	static final byte BALLOT_OUTCOME = 13;
+	static final byte HEARTBEAT = 14;
+
+	private static final String[] NAMES = {null, "JOIN", "DETAILS", "VOTE_OPTIONS", "VOTE", "OUTCOME", "VOTE_COMPLETE", "GOSSIP", "GOSSIP_REPLY", "GOSSIP_DONE",
+	                                       "BALLOT_OPTIONS", "BALLOT_VOTE", "BALLOT_VOTE_COMPLETE", "BALLOT_OUTCOME", "HEARTBEAT"}; // the keyword of each message type in the text protocol
+	static final int TYPES = NAMES.length; // one more than the highest message type, for arrays indexed by type
+
+	static final int MAX_FRAME = 0xFFFFFF; // keeps the first byte of every frame 0
+
+	static final int BUFFER_SIZE = 64 * 1024; // outgoing messages are staged up to this many bytes before being written
+
+	private static final boolean binary = "binary".equals(System.getProperty("wire.protocol"));
+	private static final boolean flushEachMessage = "message".equals(System.getProperty("wire.flush")); // -Dwire.flush=message writes every message on its own, for comparison
+	private static final int HEARTBEAT_MISSES = Integer.getInteger("heartbeat.misses", 4); // -Dheartbeat.misses=<n> intervals without hearing from a peer before it is taken to have crashed
+
+	/**
+	 * @return true if this process should send binary frames rather than text
+	 */
+	static boolean isEnabled()
+	{
+		return binary;
+	}
+
+	/**
+	 * @param timeout The timeout of the process in milliseconds
+	 * @return how long a connection may be idle before a HEARTBEAT is sent on it, -Dheartbeat.interval=<ms> (default a
+	 *         quarter of the timeout), 0 if heartbeats are off
+	 */
+	static int heartbeatInterval(int timeout)
+	{
+		return Math.max(0, Integer.getInteger("heartbeat.interval", Math.max(1, timeout / 4)));
+	}
+
+	/**
+	 * @param timeout The timeout of the process in milliseconds
+	 * @return how long a peer sending heartbeats may go unheard before it is taken to have crashed, 0 if heartbeats are off
+	 */
+	static int heartbeatSilence(int timeout)
+	{
+		return heartbeatInterval(timeout) * Math.max(1, HEARTBEAT_MISSES);
+	}
+
+	/**
+	 * @return true if every message should be written to the socket as soon as it is sent rather than staged until the
+	 *         sender has nothing more queued
+	 */
+	static boolean flushEachMessage()
+	{
+		return flushEachMessage;
+	}
+
+	/**
+	 * Disables Nagle's algorithm on a connection whose sender stages its own writes, holding back a small segment
+	 * until the previous one is acknowledged would only delay the next round
+	 * @param socket A newly connected socket
+	 * @throws SocketException if there is a problem with the socket
+	 */
+	static void configure(Socket socket) throws SocketException
+	{
+		socket.setTcpNoDelay(!flushEachMessage);
+	}
+
+	/**
+	 * @param name The first word of a text message
+	 * @return the message type with that keyword, or -1 if there is none
+	 */
+	static byte typeOf(String name)
+	{
+		for(byte type = 1; type < NAMES.length; type++)
+		{
+			if(NAMES[type].equals(name))
+			{
+				return type;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @return the keyword of a message type in the text protocol
+	 */
+	static String nameOf(byte type)
+	{
+		return NAMES[type];
+	}
+
+	/**
+	 * @param firstByte The first byte received on a connection
+	 * @return true if the connection is carrying binary frames
+	 */
+	static boolean isBinary(int firstByte)
+	{
+		return firstByte == 0;
+	}
+
+	/**
+	 * Reads the first byte of a stream without consuming it
+	 * @param in The stream, which must support mark
+	 * @return the first byte or -1 if the stream has ended
+	 * @throws IOException if there is a problem with the stream
+	 */
+	static int peek(InputStream in) throws IOException
+	{
+		in.mark(1);
+		int first = in.read();
+		in.reset();
+		return first;
+	}
+
+	static ByteBuffer encodeJoin(int port)
+	{
+		ByteBuffer frame = start(JOIN, 4);
+		frame.putInt(port);
+		return finish(frame);
+	}
+
+	static ByteBuffer encodeDetails(List<Integer> ports)
+	{
+		ByteBuffer frame = start(DETAILS, 4 + 4 * ports.size());
+		putPorts(frame, ports);
+		return finish(frame);
+	}
+
+	static ByteBuffer encodeVoteOptions(String[] options)
+	{
+		return encodeOptions(VOTE_OPTIONS, new int[0], options);
+	}
+
+	static ByteBuffer encodeBallotOptions(int ballot, String[] options)
+	{
+		return encodeOptions(BALLOT_OPTIONS, new int[]{ballot}, options);
+	}
+
+	private static ByteBuffer encodeOptions(byte type, int[] header, String[] options)
+	{
+		byte[][] encoded = new byte[options.length][];
+		int size = 4 * header.length + 4;
+		for(int i = 0; i < options.length; i++)
+		{
+			encoded[i] = options[i].getBytes(StandardCharsets.UTF_8);
+			size += 2 + encoded[i].length;
+		}
+		ByteBuffer frame = start(type, size);
+		for(int field : header)
+		{
+			frame.putInt(field);
+		}
+		frame.putInt(options.length);
+		for(byte[] option : encoded)
+		{
+			frame.putShort((short) option.length);
+			frame.put(option);
+		}
+		return finish(frame);
+	}
+
+	/**
+	 * @param type One of the message types carrying votes, VOTE, VOTE_COMPLETE or one of the GOSSIP or BALLOT_VOTE types
+	 * @param header The 4 byte fields that come before the votes, empty for VOTE and VOTE_COMPLETE
+	 * @param ports The ports of the participants whose votes are being sent
+	 * @param optionIndices The index of the option each of those participants voted for
+	 * @param count The number of votes to take from the arrays
+	 */
+	static ByteBuffer encodeVotes(byte type, int[] header, int[] ports, int[] optionIndices, int count)
+	{
+		ByteBuffer frame = start(type, 4 * header.length + 4 + 6 * count);
+		for(int field : header)
+		{
+			frame.putInt(field);
+		}
+		frame.putInt(count);
+		for(int i = 0; i < count; i++)
+		{
+			frame.putInt(ports[i]);
+			frame.putShort((short) optionIndices[i]);
+		}
+		return finish(frame);
+	}
+
+	/**
+	 * @return a HEARTBEAT in the protocol this process sends
+	 */
+	static ByteBuffer encodeHeartbeat()
+	{
+		return binary ? finish(start(HEARTBEAT, 0)) : encodeLine(NAMES[HEARTBEAT]);
+	}
+
+	static ByteBuffer encodeOutcome(int optionIndex, Collection<Integer> ports)
+	{
+		ByteBuffer frame = start(OUTCOME, 2 + 4 + 4 * ports.size());
+		frame.putShort((short) optionIndex);
+		putPorts(frame, ports);
+		return finish(frame);
+	}
+
+	static ByteBuffer encodeBallotOutcome(int ballot, int optionIndex, Collection<Integer> ports)
+	{
+		ByteBuffer frame = start(BALLOT_OUTCOME, 4 + 2 + 4 + 4 * ports.size());
+		frame.putInt(ballot);
+		frame.putShort((short) optionIndex);
+		putPorts(frame, ports);
+		return finish(frame);
+	}
+
+	/**
+	 * Writes an encoded frame to a stream and flushes it
+	 * @param out The stream to write to
+	 * @param frame The frame, which is not consumed
+	 * @throws IOException if there is a problem with the stream
+	 */
+	static void write(OutputStream out, ByteBuffer frame) throws IOException
+	{
+		put(out, frame);
+		out.flush();
+	}
+
+	/**
+	 * Stages an encoded frame, or an encoded text line, in a buffered stream without flushing it
+	 * @param out The stream to write to
+	 * @param frame The bytes to write, which are not consumed
+	 * @throws IOException if there is a problem with the stream
+	 */
+	static void put(OutputStream out, ByteBuffer frame) throws IOException
+	{
+		out.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+	}
+
+	/**
+	 * @return a text message encoded as a line ready to be staged with put
+	 */
+	static ByteBuffer encodeLine(String message)
+	{
+		return ByteBuffer.wrap((message + "\n").getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Reads the next frame from a stream
+	 * @param in The stream to read from
+	 * @param buffer A buffer to reuse, may be null
+	 * @return a buffer positioned at the message type and limited to the end of the frame (a new one if the frame did
+	 *         not fit in the one given), or null if the stream ended between frames
+	 * @throws IOException if there is a problem with the stream or the frame is malformed
+	 */
+	static ByteBuffer readFrame(DataInputStream in, ByteBuffer buffer) throws IOException
+	{
+		int length;
+		try
+		{
+			length = in.readInt();
+		}
+		catch(EOFException e)
+		{
+			return null;
+		}
+		checkLength(length);
+		if(buffer == null || buffer.capacity() < length)
+		{
+			buffer = ByteBuffer.allocate(Math.max(length, 256));
+		}
+		buffer.clear();
+		in.readFully(buffer.array(), buffer.arrayOffset(), length);
+		buffer.limit(length);
+		return buffer;
+	}
+
+	/**
+	 * Checks whether a whole frame is available in a buffer being filled from a channel
+	 * @param buffer A buffer in read mode positioned at the start of a frame
+	 * @return the length of the frame after its length prefix, or -1 if the frame has not been fully received
+	 * @throws IOException if the frame is malformed
+	 */
+	static int completeFrame(ByteBuffer buffer) throws IOException
+	{
+		if(buffer.remaining() < 4)
+		{
+			return -1;
+		}
+		int length = buffer.getInt(buffer.position());
+		checkLength(length);
+		return buffer.remaining() - 4 >= length ? length : -1;
+	}
+
+	/**
+	 * Reads an option index from a VOTE or OUTCOME frame, or their BALLOT forms
+	 */
+	static int getOptionIndex(ByteBuffer frame)
+	{
+		return frame.getShort() & 0xFFFF;
+	}
+
+	/**
+	 * Reads an option from a VOTE_OPTIONS or BALLOT_OPTIONS frame
+	 */
+	static String getOption(ByteBuffer frame)
+	{
+		int length = frame.getShort() & 0xFFFF;
+		String option = new String(frame.array(), frame.arrayOffset() + frame.position(), length, StandardCharsets.UTF_8);
+		frame.position(frame.position() + length);
+		return option;
+	}
+
+	private static void checkLength(int length) throws IOException
+	{
+		if(length < 1 || length > MAX_FRAME)
+		{
+			throw new IOException("Invalid frame length: " + length);
+		}
+	}
+
+	private static ByteBuffer start(byte type, int payload)
+	{
+		ByteBuffer frame = ByteBuffer.allocate(4 + 1 + payload);
+		frame.putInt(1 + payload);
+		frame.put(type);
+		return frame;
+	}
+
+	private static ByteBuffer finish(ByteBuffer frame)
+	{
+		frame.flip();
+		return frame;
+	}
+
+	private static void putPorts(ByteBuffer frame, Collection<Integer> ports)
+	{
+		frame.putInt(ports.size());
+		for(int port : ports)
+		{
+			frame.putInt(port);
+		}
+	}
+}
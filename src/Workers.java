@@ -0,0 +1,90 @@
+import java.lang.reflect.Method;
+
+/**
+ * Starts the worker threads of the Coordinator and Participants, on virtual threads when running with
+ * -Dworker.threads=virtual on a JVM that supports them (21+) and on platform threads otherwise
+ */
+public class Workers
+{
+	private static final Method startVirtualThread = findStartVirtualThread(); // null when using platform threads
+	private static final Object lock = new Object();
+	private static int running; // workers on virtual threads still running, they are daemons so they have to be waited for explicitly
+
+	private static Method findStartVirtualThread()
+	{
+		if(!"virtual".equals(System.getProperty("worker.threads")))
+		{
+			return null;
+		}
+		try
+		{
+			return Thread.class.getMethod("startVirtualThread", Runnable.class);
+		}
+		catch(NoSuchMethodException e)
+		{
+			System.out.println("Workers > Virtual threads are not supported by this JVM, using platform threads");
+			return null;
+		}
+	}
+
+	/**
+	 * Starts a worker, when using virtual threads the worker's run method is executed by a new virtual thread
+	 * and the worker itself is never started
+	 * @param worker The worker to start
+	 */
+	static void start(Thread worker)
+	{
+		if(startVirtualThread == null)
+		{
+			worker.start();
+			return;
+		}
+		synchronized(lock)
+		{
+			running += 1;
+		}
+		Runnable run = () -> {
+			try
+			{
+				worker.run();
+			}
+			finally
+			{
+				finished();
+			}
+		};
+		try
+		{
+			startVirtualThread.invoke(null, run);
+		}
+		catch(ReflectiveOperationException e)
+		{
+			finished();
+			throw new IllegalStateException("Could not start a virtual thread", e);
+		}
+	}
+
+	private static void finished()
+	{
+		synchronized(lock)
+		{
+			running -= 1;
+			lock.notifyAll();
+		}
+	}
+
+	/**
+	 * Waits for every worker started on a virtual thread to finish, platform threads already keep the JVM alive
+	 * @throws InterruptedException if the thread is interrupted
+	 */
+	static void joinAll() throws InterruptedException
+	{
+		synchronized(lock)
+		{
+			while(running > 0)
+			{
+				lock.wait();
+			}
+		}
+	}
+}